@@ -1,8 +1,30 @@
 package p2p.controller;
 
+import p2p.service.BlobContent;
+import p2p.service.BlobStore;
+import p2p.service.BundleContent;
+import p2p.service.FileContent;
 import p2p.service.FileSharer;
+import p2p.service.MemoryContent;
+import p2p.service.PipelinedChannel;
+import p2p.service.Share;
+import p2p.service.SharedContent;
+import p2p.service.UploadConflictException;
+import p2p.service.UploadSession;
+import p2p.service.UploadSessionManager;
+import p2p.service.TarBundleContent;
+import p2p.service.UploadSpool;
+import p2p.service.ZipBundleBuilder;
+import p2p.service.ZipBundleContent;
+import p2p.service.ZipBundleFile;
+import p2p.service.ZipIndex;
+import p2p.utils.BufferPool;
+import p2p.utils.EnvUtils;
+import p2p.utils.Metrics;
+import p2p.utils.UploadUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -11,8 +33,11 @@ import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
@@ -20,8 +45,6 @@ import java.util.UUID;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * FileController - handles /upload, /download, /share endpoints using com.sun.net.httpserver
@@ -30,16 +53,33 @@ public class FileController {
 
     private final HttpServer server;
     private final FileSharer fileSharer;
+    // uploaded files that spill to disk are stored once per SHA-256 under UPLOAD_DIR/blobs
+    private final BlobStore blobStore = new BlobStore(new File(uploadDir(), "blobs"));
+    // resumable upload sessions, kept under UPLOAD_DIR/sessions across restarts
+    private final UploadSessionManager uploadSessions = new UploadSessionManager(new File(uploadDir(), "sessions"));
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    // parse buffers for multipart uploads, reused across requests
+    private final BufferPool uploadBuffers = new BufferPool(MultipartStreamReader.BUFFER_SIZE, 32, false);
+    // "nio" (default): part bodies are written from the parse buffer to their UploadSpool
+    // "stream": part bodies are copied through a BufferedOutputStream
+    private final boolean nioUploads = !"stream".equalsIgnoreCase(System.getenv().getOrDefault("UPLOAD_MODE", "nio"));
+    // hand disk writes of larger uploads to a writer thread (UPLOAD_PIPELINE_DEPTH buffers of 64 KB in flight)
+    private final boolean pipelinedUploads = EnvUtils.getBoolean("UPLOAD_PIPELINE", true);
+    private final int pipelineDepth = EnvUtils.getInt("UPLOAD_PIPELINE_DEPTH", 8);
+    // multi-file bundles: "lazy" (default) generates the zip while it is downloaded,
+    // "incremental" builds a zip file while the upload arrives, compressing each part once it is complete
+    private final boolean incrementalBundles = "incremental".equalsIgnoreCase(System.getenv().getOrDefault("BUNDLE_MODE", "lazy"));
 
     public FileController(int port) throws IOException {
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
         this.fileSharer = new FileSharer();
 
         server.createContext("/upload", new UploadHandler());
+        server.createContext("/upload/", new UploadPathHandler());
         server.createContext("/download", new DownloadHandler());
         server.createContext("/share", new ShareHandler());
+        server.createContext("/metrics", new MetricsHandler());
         server.createContext("/", new CORSHandler());
         server.setExecutor(executor);
     }
@@ -52,6 +92,8 @@ public class FileController {
         try {
             server.stop(0);
             executor.shutdownNow();
+            uploadSessions.close();
+            fileSharer.close();
         } catch (Exception ignore) {
         }
     }
@@ -122,46 +164,106 @@ public class FileController {
                 return;
             }
 
-            // Ensure upload directory exists
-            String uploadDirPath = System.getenv().getOrDefault("UPLOAD_DIR", "uploads");
-            File uploadDir = new File(uploadDirPath);
-            if (!uploadDir.exists()) uploadDir.mkdirs();
 
             InputStream reqIn = exchange.getRequestBody();
             byte[] boundaryBytes = ("--" + boundary).getBytes(StandardCharsets.UTF_8);
 
-            MultipartStreamReader msr = new MultipartStreamReader(reqIn, boundaryBytes);
-            List<File> savedFiles = new ArrayList<>();
+            long contentLength = parseContentLength(requestHeaders.getFirst("Content-Length"));
+            // small uploads stay in memory anyway; only pipeline bodies that can hit the disk
+            boolean pipelined = pipelinedUploads && (contentLength < 0 || contentLength > UploadSpool.getMemoryThreshold());
+
+            // ?append=<invite code>&appendToken=<token>: add the uploaded files to that bundle share
+            // instead of creating one; the token is only given to the share's uploader
+            String appendParam = queryParam(exchange, "append");
+            Share appendTo = null;
+            if (appendParam != null) {
+                String appendCode = UploadUtils.normalizeCode(appendParam);
+                if (appendCode == null) {
+                    reqIn.close();
+                    sendText(exchange, 400, "Bad Request: invalid append code");
+                    return;
+                }
+                appendTo = fileSharer.getShare(appendCode);
+                if (appendTo == null) {
+                    reqIn.close();
+                    sendText(exchange, 404, "No share for this invite code");
+                    return;
+                }
+                if (!appendTo.isAppendToken(queryParam(exchange, "appendToken"))) {
+                    reqIn.close();
+                    sendText(exchange, 403, "Forbidden: missing or wrong append token");
+                    return;
+                }
+            }
+            ByteBuffer parseBuffer = uploadBuffers.acquire();
+            MultipartStreamReader msr = new MultipartStreamReader(reqIn, boundaryBytes, parseBuffer);
+            List<SharedContent> savedFiles = new ArrayList<>();
+            // bundle format for multi-file uploads: ?format=zip|tar or a "format" form field
+            String bundleFormat = queryParam(exchange, "format");
+            // share options given as form fields ("maxDownloads", "ttl"); the query string works too
+            Map<String, String> shareOptions = new HashMap<>();
+            ZipBundleBuilder bundle = null;
+            SharedContent bundled = null;
             try {
                 MultipartPart part;
                 while ((part = msr.readNextPart()) != null) {
-                    String disposition = part.getHeaders().get("Content-Disposition");
-                    if (disposition == null) {
-                        // ignore non-disposition parts
-                        continue;
-                    }
-
-                    // parse filename from Content-Disposition
-                    String filename = parseFilenameFromContentDisposition(disposition);
+                    // filename is parsed from Content-Disposition; parts without one are
+                    // plain form fields (e.g., meta) or non-disposition parts. ignore
+                    String filename = part.getFilename();
                     if (filename == null || filename.isEmpty()) {
-                        // might be a form field (e.g., meta). ignore
+                        if ("format".equals(part.getName())) {
+                            bundleFormat = new String(part.getInputStream().readNBytes(16), StandardCharsets.UTF_8).trim();
+                        } else if ("maxDownloads".equals(part.getName()) || "ttl".equals(part.getName())) {
+                            shareOptions.put(part.getName(), new String(part.getInputStream().readNBytes(16), StandardCharsets.UTF_8).trim());
+                        }
                         continue;
                     }
 
                     String safe = safeFileName(filename);
-                    File out = new File(uploadDir, UUID.randomUUID().toString() + "-" + safe);
-
-                    try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(out))) {
-                        streamCopy(part.getInputStream(), fos);
+                    String storedName = UUID.randomUUID().toString() + "-" + safe;
+                    // small parts stay in memory; larger ones spill to this file (a part's size is not known up front)
+                    UploadSpool spool = new UploadSpool(blobStore.newTempFile(), -1);
+                    PipelinedChannel pipe = pipelined ? new PipelinedChannel(spool, pipelineDepth) : null;
+                    WritableByteChannel sink = pipe != null ? pipe : spool;
+                    try {
+                        if (nioUploads) {
+                            part.transferTo(sink);
+                        } else {
+                            try (OutputStream fos = new BufferedOutputStream(Channels.newOutputStream(sink))) {
+                                part.getInputStream().transferTo(fos);
+                            }
+                        }
+                        if (pipe != null) pipe.close();
+                        spool.close();
+                    } catch (IOException ex) {
+                        if (pipe != null) pipe.abort();
+                        spool.discard();
+                        throw ex;
                     }
-
-                    savedFiles.add(out);
+                    savedFiles.add(spool.toContent(storedName, blobStore));
+                    if (incrementalBundles && appendTo == null && savedFiles.size() >= 2 && !"tar".equalsIgnoreCase(bundleFormat)) {
+                        // a second file means a bundle: start it and keep compressing parts as they complete
+                        if (bundle == null) {
+                            bundle = new ZipBundleBuilder(new File(uploadDir(), "bundle-" + UUID.randomUUID().toString() + ".zip"),
+                                    blobStore.getTempDir());
+                            bundle.add(savedFiles.get(0));
+                        }
+                        bundle.add(savedFiles.get(savedFiles.size() - 1));
+                    }
+                }
+                if (bundle != null && "tar".equalsIgnoreCase(bundleFormat)) {
+                    // the format field came after the first files
+                    bundle.abort();
+                    bundle = null;
+                }
+                if (bundle != null) {
+                    bundled = bundle.finish();
+                    bundle = null;
                 }
             } catch (IOException ex) {
                 // cleanup partial saved files in case of parse/upload error
-                for (File f : savedFiles) {
-                    try { f.delete(); } catch (Exception ee) { /* ignore */ }
-                }
+                if (bundle != null) bundle.abort();
+                releaseAll(savedFiles);
                 String response = "Upload failed: " + ex.getMessage();
                 exchange.sendResponseHeaders(500, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -170,6 +272,7 @@ public class FileController {
                 return;
             } finally {
                 try { reqIn.close(); } catch (Exception ignore) {}
+                uploadBuffers.release(parseBuffer);
             }
 
             if (savedFiles.isEmpty()) {
@@ -180,140 +283,333 @@ public class FileController {
                 }
                 return;
             }
+            if (appendTo != null) {
+                appendAndRespond(exchange, appendTo, savedFiles);
+                return;
+            }
             // Decide what to offer: single file or a zip bundle
-            File fileToOffer = null;
+            SharedContent contentToOffer = null;
             boolean createdZip = false;
 
             if (savedFiles.size() == 1) {
                 // Serve the original uploaded file directly (no zip)
-                fileToOffer = savedFiles.get(0);
-                System.out.println("Single file upload detected. Will serve file directly: " + fileToOffer.getName());
+                contentToOffer = savedFiles.get(0);
+                System.out.println("Single file upload detected. Will serve file directly: " + contentToOffer.getName()
+                        + (contentToOffer instanceof MemoryContent ? " (in memory)" : ""));
+            } else if (bundled != null) {
+                // the zip was built while the parts arrived; the parts now live inside it
+                releaseAll(savedFiles);
+                contentToOffer = bundled;
+                createdZip = true;
+                System.out.println("Built zip bundle " + bundled.getName() + " during upload, size=" + bundled.size());
+            } else if ("tar".equalsIgnoreCase(bundleFormat)) {
+                // uncompressed tar, copied from the parts while it is downloaded
+                contentToOffer = new TarBundleContent("bundle-" + UUID.randomUUID().toString() + ".tar", savedFiles);
+                System.out.println("Created tar bundle " + contentToOffer.getName() + " with " + savedFiles.size()
+                        + " files, size=" + contentToOffer.size());
             } else {
-                // Create zip from savedFiles
-                File zipFile = new File(uploadDir, "bundle-" + UUID.randomUUID().toString() + ".zip");
-                try (FileOutputStream fos = new FileOutputStream(zipFile);
-                     BufferedOutputStream bos = new BufferedOutputStream(fos);
-                     ZipOutputStream zos = new ZipOutputStream(bos)) {
-
-                    byte[] buf = new byte[8192];
-                    for (File f : savedFiles) {
-                        ZipEntry entry = new ZipEntry(f.getName());
-                        zos.putNextEntry(entry);
-                        try (FileInputStream fis = new FileInputStream(f)) {
-                            int len;
-                            while ((len = fis.read(buf)) > 0) {
-                                zos.write(buf, 0, len);
-                            }
-                        }
-                        zos.closeEntry();
-                    }
-                    zos.finish();
-                } catch (IOException ex) {
-                    // cleanup
-                    System.err.println("Error creating zip: " + ex.getMessage());
-                    if (zipFile.exists()) try { zipFile.delete(); } catch (Exception ignore) {}
-                    for (File f : savedFiles) {
-                        try { f.delete(); } catch (Exception ignore) {}
-                    }
-                    String response = "Failed to create zip: " + ex.getMessage();
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-                    return;
-                }
-
-                // verify zip created
-                if (!zipFile.exists() || zipFile.length() == 0L) {
-                    String response = "Server error: created zip is missing or empty";
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-                    for (File f : savedFiles) {
-                        try { f.delete(); } catch (Exception ignore) {}
-                    }
-                    return;
-                }
-
-                fileToOffer = zipFile;
+                // Bundle the parts as a zip that is generated while it is downloaded
+                contentToOffer = new ZipBundleContent("bundle-" + UUID.randomUUID().toString() + ".zip", savedFiles,
+                        blobStore.getTempDir());
                 createdZip = true;
-                System.out.println("Created zip: " + zipFile.getAbsolutePath() + " size=" + zipFile.length());
+                System.out.println("Created zip bundle " + contentToOffer.getName() + " with " + savedFiles.size() + " files");
             }
 
-            // Offer the chosen file (single file or zip) to FileSharer
-            int invitePort;
+            offerAndRespond(exchange, contentToOffer, savedFiles.size(), createdZip, shareOptions);
+        }
+    }
+
+    /**
+     * Add uploaded parts to an existing bundle share, keeping its invite code. Lazily generated
+     * bundles just take the parts into their manifest; a bundle zip file the server built
+     * (ZipBundleFile) is copied up to its central directory into a new file that gets the new entries
+     * and directory. Running downloads keep sending the snapshot they started with. Uploaded zip
+     * files are never modified.
+     */
+    private void appendAndRespond(HttpExchange exchange, Share share, List<SharedContent> parts) throws IOException {
+        String code = share.getCode();
+        SharedContent content = share.getContent();
+        if (content instanceof BundleContent) {
+            BundleContent bundle = (BundleContent) content;
+            if (!share.pin()) {
+                releaseAll(parts);
+                sendText(exchange, 404, "Share is no longer available");
+                return;
+            }
+            boolean added;
             try {
-                invitePort = fileSharer.offerFile(fileToOffer.getAbsolutePath());
-            } catch (Exception ex) {
-                String response = "Failed to offer file: " + ex.getMessage();
-                exchange.sendResponseHeaders(500, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
+                added = bundle.addEntries(parts);
+            } finally {
+                share.unpin();
+            }
+            if (!added) {
+                releaseAll(parts);
+                sendText(exchange, 404, "Share is no longer available");
+                return;
+            }
+            System.out.println("Appended " + parts.size() + " files to bundle " + bundle.getName());
+            respondShare(exchange, code, bundle, bundle.getEntries().size(), bundle instanceof ZipBundleContent);
+            return;
+        }
+        if (content instanceof ZipBundleFile) {
+            int count;
+            if (!share.pin()) {
+                releaseAll(parts);
+                sendText(exchange, 404, "Share is no longer available");
                 return;
             }
+            try {
+                count = ((ZipBundleFile) content).append(parts, blobStore.getTempDir());
+            } catch (IOException ex) {
+                sendText(exchange, 500, "Append failed: " + ex.getMessage());
+                return;
+            } finally {
+                share.unpin();
+                // the parts now live inside the zip (or the append failed)
+                releaseAll(parts);
+            }
+            System.out.println("Appended " + parts.size() + " files to bundle " + content.getName() + ", size=" + content.size());
+            respondShare(exchange, code, content, count, true);
+            return;
+        }
+        releaseAll(parts);
+        sendText(exchange, 400, "Bad Request: share is not a bundle");
+    }
 
-            // Start FileSharer server asynchronously so it begins listening for the downloader.
-            final File served = fileToOffer;
-            final int startedPort = invitePort;
-            new Thread(() -> {
-                try {
-                    System.out.println("Starting FileSharer server for port " + startedPort + ", serving: " + served.getAbsolutePath());
-                    fileSharer.startFileServer(startedPort);
-                    System.out.println("FileSharer server finished for port " + startedPort);
-                } catch (Exception e) {
-                    System.err.println("Failed to start file server for port " + startedPort + ": " + e.getMessage());
-                    e.printStackTrace();
-                }
-            }, "FileSharer-Starter-" + invitePort).start();
+    // ---------------- /upload/... router ----------------
+    /**
+     * Routes requests below /upload/: PUT is a raw single-file upload, everything else belongs
+     * to the resumable upload session API.
+     */
+    private class UploadPathHandler implements HttpHandler {
+        private final RawUploadHandler raw = new RawUploadHandler();
+        private final UploadSessionHandler sessions = new UploadSessionHandler();
 
-            // Respond with JSON
-            ObjectNode res = objectMapper.createObjectNode();
-            res.put("inviteCode", invitePort);
-            res.put("fileCount", savedFiles.size());
-            res.put("servedName", fileToOffer.getName());
-            res.put("isZip", createdZip);
-
-            byte[] bytes = res.toString().getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, bytes.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(bytes);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers respHeaders = exchange.getResponseHeaders();
+            respHeaders.add("Access-Control-Allow-Origin", "*");
+            respHeaders.add("Access-Control-Allow-Methods", "PUT, POST, PATCH, HEAD, GET, DELETE, OPTIONS");
+            respHeaders.add("Access-Control-Allow-Headers", "Content-Type, Upload-Length, Upload-Offset, Upload-Filename, Upload-Chunk-Size, Upload-Digest, X-Content-SHA256");
+            respHeaders.add("Access-Control-Expose-Headers", "Location, Upload-Length, Upload-Offset, Upload-Chunk-Size");
+
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            if (exchange.getRequestMethod().equalsIgnoreCase("PUT")) {
+                raw.handle(exchange);
+            } else {
+                sessions.handle(exchange);
             }
+        }
+    }
 
+    // ---------------- RAW UPLOAD handler (PUT /upload/{filename}) ----------------
+    /**
+     * Single-file upload without multipart framing: the request body is the file.
+     * Meant for CLI and server-to-server clients; responds with the same JSON as /upload.
+     */
+    private class RawUploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // expected: /upload/<filename> (already percent-decoded by getPath)
+            String path = exchange.getRequestURI().getPath();
+            String filename = path.substring("/upload/".length());
+            if (filename.isEmpty() || filename.contains("/")) {
+                sendText(exchange, 400, "Bad Request: expected PUT /upload/{filename}");
+                return;
+            }
+
+            long contentLength = parseContentLength(exchange.getRequestHeaders().getFirst("Content-Length"));
+            String storedName = UUID.randomUUID().toString() + "-" + safeFileName(filename);
+
+            // Optional X-Content-SHA256: the body is always received and hashed, and rejected if it
+            // does not match. A client-supplied digest never resolves to a stored blob by itself,
+            // or knowing a file's hash would be enough to get a share of someone else's upload.
+            String expectedDigest = exchange.getRequestHeaders().getFirst("X-Content-SHA256");
+            if (expectedDigest != null) expectedDigest = expectedDigest.trim().toLowerCase(Locale.ROOT);
+
+            UploadSpool spool = new UploadSpool(blobStore.newTempFile(), contentLength);
+            try (InputStream body = exchange.getRequestBody()) {
+                long received = spool.transferFrom(Channels.newChannel(body), contentLength);
+                spool.close();
+                if (contentLength >= 0 && received != contentLength) {
+                    throw new IOException("expected " + contentLength + " bytes, received " + received);
+                }
+            } catch (IOException ex) {
+                spool.discard();
+                sendText(exchange, 500, "Upload failed: " + ex.getMessage());
+                return;
+            }
+            if (expectedDigest != null && !expectedDigest.equals(spool.getDigest())) {
+                spool.discard();
+                sendText(exchange, 400, "Bad Request: body does not match X-Content-SHA256");
+                return;
+            }
+
+            offerAndRespond(exchange, spool.toContent(storedName, blobStore), 1, false);
         }
+    }
+
+    // ---------------- RESUMABLE UPLOAD handler ----------------
+    /**
+     * Resumable uploads:
+     * - POST   /upload/sessions  (Upload-Length, Upload-Filename) => 201, Location: /upload/{id}
+     * - HEAD   /upload/{id}      => Upload-Offset / Upload-Length of the session
+     * - GET    /upload/{id}      => the same as JSON
+     * - PATCH  /upload/{id}      (Upload-Offset) => appends the body, 204 with the new Upload-Offset
+     * - POST   /upload/{id}      => finalizes a complete session into a share (same JSON as /upload)
+     * - DELETE /upload/{id}      => abandons the session
+     * A PATCH with the wrong offset gets 409 and the committed Upload-Offset to resume from.
+     *
+     * Parallel sessions: POST /upload/sessions with Upload-Chunk-Size (and optionally
+     * Upload-Digest: sha-256=<hex>) lets the client PATCH chunks concurrently over several
+     * connections, each with Upload-Offset = index * chunk size. GET lists the missing chunks.
+     * The PATCH that delivers the last chunk seals the file, verifies the digest and answers with
+     * the share JSON instead of 204; on a digest mismatch all chunks have to be sent again (409).
+     */
+    private class UploadSessionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            String id = exchange.getRequestURI().getPath().substring("/upload/".length());
+            Headers req = exchange.getRequestHeaders();
 
-        private String parseFilenameFromContentDisposition(String disposition) {
-            // e.g. form-data; name="files"; filename="a.txt"
-            String[] parts = disposition.split(";");
-            for (String p : parts) {
-                p = p.trim();
-                if (p.startsWith("filename=")) {
-                    String val = p.substring(9).trim();
-                    if (val.startsWith("\"") && val.endsWith("\"") && val.length() >= 2) {
-                        val = val.substring(1, val.length() - 1);
+            if (id.equals("sessions")) {
+                if (!method.equals("POST")) {
+                    sendText(exchange, 405, "Method Not Allowed");
+                    return;
+                }
+                long length = parseContentLength(req.getFirst("Upload-Length"));
+                String filename = req.getFirst("Upload-Filename");
+                if (length < 0 || filename == null || filename.isBlank()) {
+                    sendText(exchange, 400, "Bad Request: Upload-Length and Upload-Filename headers are required");
+                    return;
+                }
+                filename = URLDecoder.decode(filename, StandardCharsets.UTF_8);
+                // Upload-Chunk-Size opens a parallel session; Upload-Digest (sha-256=<hex>) is checked when sealing
+                long chunkSize = 0;
+                if (req.getFirst("Upload-Chunk-Size") != null) {
+                    chunkSize = parseContentLength(req.getFirst("Upload-Chunk-Size"));
+                    if (chunkSize <= 0) {
+                        sendText(exchange, 400, "Bad Request: invalid Upload-Chunk-Size");
+                        return;
                     }
-                    // decode in case browser encoded it
-                    try {
-                        return URLDecoder.decode(val, "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        return val;
+                }
+                String digest = req.getFirst("Upload-Digest");
+                if (digest != null) {
+                    digest = digest.trim();
+                    if (digest.regionMatches(true, 0, "sha-256=", 0, 8)) digest = digest.substring(8);
+                }
+                UploadSession session;
+                try {
+                    session = uploadSessions.create(safeFileName(filename), length, chunkSize, digest);
+                } catch (IllegalArgumentException e) {
+                    sendText(exchange, 400, "Bad Request: " + e.getMessage());
+                    return;
+                }
+                exchange.getResponseHeaders().add("Location", "/upload/" + session.getId());
+                sendJson(exchange, 201, sessionJson(session));
+                return;
+            }
+
+            UploadSession session = uploadSessions.get(id);
+            if (session == null) {
+                sendText(exchange, 404, "Upload session not found");
+                return;
+            }
+            Headers resp = exchange.getResponseHeaders();
+            resp.add("Cache-Control", "no-store");
+            try {
+                switch (method) {
+                    case "HEAD":
+                        resp.add("Upload-Offset", Long.toString(session.getOffset()));
+                        resp.add("Upload-Length", Long.toString(session.getLength()));
+                        if (session.isParallel()) resp.add("Upload-Chunk-Size", Long.toString(session.getChunkSize()));
+                        exchange.sendResponseHeaders(200, -1);
+                        break;
+                    case "GET":
+                        sendJson(exchange, 200, sessionJson(session));
+                        break;
+                    case "PATCH": {
+                        long offset = parseContentLength(req.getFirst("Upload-Offset"));
+                        if (offset < 0) {
+                            sendText(exchange, 400, "Bad Request: Upload-Offset header is required");
+                            return;
+                        }
+                        if (session.isParallel()) {
+                            boolean sealed;
+                            try (InputStream body = exchange.getRequestBody()) {
+                                sealed = uploadSessions.writeChunk(session, offset, body);
+                            }
+                            resp.add("Upload-Offset", Long.toString(session.getOffset()));
+                            if (sealed) {
+                                // last chunk: verify and share right away, answering with the invite
+                                String storedName = UUID.randomUUID().toString() + "-" + session.getFilename();
+                                offerAndRespond(exchange, uploadSessions.finish(session, blobStore, storedName), 1, false);
+                            } else {
+                                exchange.sendResponseHeaders(204, -1);
+                            }
+                            break;
+                        }
+                        long committed;
+                        try (InputStream body = exchange.getRequestBody()) {
+                            committed = uploadSessions.append(session, offset, body);
+                        }
+                        resp.add("Upload-Offset", Long.toString(committed));
+                        exchange.sendResponseHeaders(204, -1);
+                        break;
                     }
+                    case "POST": {
+                        String storedName = UUID.randomUUID().toString() + "-" + session.getFilename();
+                        BlobContent content = uploadSessions.finish(session, blobStore, storedName);
+                        offerAndRespond(exchange, content, 1, false);
+                        break;
+                    }
+                    case "DELETE":
+                        uploadSessions.abort(session);
+                        exchange.sendResponseHeaders(204, -1);
+                        break;
+                    default:
+                        sendText(exchange, 405, "Method Not Allowed");
                 }
+            } catch (UploadConflictException ex) {
+                resp.add("Upload-Offset", Long.toString(ex.getOffset()));
+                sendText(exchange, 409, "Conflict: " + ex.getMessage());
+            } catch (IOException ex) {
+                // the body may have broken off; what was written is committed and reported
+                resp.add("Upload-Offset", Long.toString(session.getOffset()));
+                sendText(exchange, 500, "Upload failed: " + ex.getMessage());
             }
-            return null;
+        }
+
+        private ObjectNode sessionJson(UploadSession session) {
+            ObjectNode res = objectMapper.createObjectNode();
+            res.put("sessionId", session.getId());
+            res.put("filename", session.getFilename());
+            res.put("length", session.getLength());
+            res.put("offset", session.getOffset());
+            if (session.isParallel()) {
+                res.put("chunkSize", session.getChunkSize());
+                res.put("chunkCount", session.getChunkCount());
+                ArrayNode missing = res.putArray("missingChunks");
+                for (int i : session.getMissingChunks()) missing.add(i);
+            }
+            return res;
         }
     }
 
     // ---------------- DOWNLOAD handler ----------------
     private class DownloadHandler implements HttpHandler {
+        private final BundleEntryHandler bundleEntries = new BundleEntryHandler();
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
 
-            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET") && !exchange.getRequestMethod().equalsIgnoreCase("HEAD")) {
                 String response = "Method Not Allowed";
                 exchange.sendResponseHeaders(405, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -323,10 +619,10 @@ public class FileController {
             }
 
             String path = exchange.getRequestURI().getPath();
-            // expected: /download/<port>
+            // expected: /download/<code>
             String[] parts = path.split("/");
             if (parts.length < 3) {
-                String response = "Bad Request: missing port";
+                String response = "Bad Request: missing invite code";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
@@ -334,12 +630,10 @@ public class FileController {
                 return;
             }
 
-            String portStr = parts[2];
-            int port;
-            try {
-                port = Integer.parseInt(portStr);
-            } catch (NumberFormatException e) {
-                String response = "Bad Request: invalid port";
+            String codeStr = parts[2];
+            String code = UploadUtils.normalizeCode(codeStr);
+            if (code == null) {
+                String response = "Bad Request: invalid invite code";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
@@ -347,36 +641,326 @@ public class FileController {
                 return;
             }
 
-            // This client connects to FileSharer server socket to download file
-            try (Socket socket = new Socket()) {
-                // set Content-Disposition if we know the original filename
-                String regPath = fileSharer.getRegisteredFilePath(port);
-                if (regPath != null) {
-                    File registered = new File(regPath);
-                    String suggested = registered.getName();
-                    exchange.getResponseHeaders().add("Content-Disposition", "attachment; filename=\"" + suggested + "\"");
+            // /download/<code>/entries and /download/<code>/entry/<name> look inside a bundle
+            if (parts.length > 3) {
+                if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                    sendText(exchange, 405, "Method Not Allowed");
+                    return;
+                }
+                bundleEntries.handle(exchange, code, path.substring(("/download/" + codeStr).length()));
+                return;
+            }
+
+            Headers request = exchange.getRequestHeaders();
+            boolean head = exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+            String rangeHeader = request.getFirst("Range");
+            String ifRange = request.getFirst("If-Range");
+            // a resumable download's ETag carries its resume ticket: "<validator>:<ticket>"; segments
+            // of the download may also send the ticket as X-Resume-Ticket, but only along with If-Range
+            String ticket = null;
+            if (rangeHeader != null && ifRange != null) {
+                String v = ifRange.trim();
+                int colon = v.lastIndexOf(':');
+                if (v.length() > 2 && v.startsWith("\"") && v.endsWith("\"") && colon > 0) {
+                    ticket = v.substring(colon + 1, v.length() - 1);
+                    ifRange = v.substring(0, colon) + "\"";
                 } else {
-                    exchange.getResponseHeaders().add("Content-Disposition", "attachment; filename=\"downloaded\"");
+                    ticket = request.getFirst("X-Resume-Ticket");
+                }
+            }
+            // pinned before anything is sized, so the content is not released during this response
+            Share share = fileSharer.openDownload(code, ticket);
+            if (share == null) {
+                sendText(exchange, 404, "No share for this invite code");
+                return;
+            }
+
+            String downloadTicket = null;
+            boolean counted = false;
+            long sent = 0;
+            boolean complete = false;
+            boolean whole = false; // the response is the whole content, not a range of it
+            // sized and sent from a snapshot: an append during the response does not change what it sends
+            SharedContent shared = share.getContent();
+            SharedContent content = shared.snapshot();
+            try {
+                if (content instanceof FileContent && !((FileContent) content).getFile().isFile()) {
+                    sendText(exchange, 410, "Shared file is no longer available");
+                    return;
+                }
+                long size = content.size();
+                String etag = etagOf(share, content);
+                long lastModified = content instanceof FileContent ? ((FileContent) content).getFile().lastModified() : 0;
+                // Range is honoured for content of known size, unless If-Range says it has changed since
+                List<HttpRange> ranges = null;
+                if (size >= 0 && HttpRange.ifRangeMatches(ifRange, etag, lastModified)) {
+                    ranges = HttpRange.parse(rangeHeader, size);
+                }
+
+                if (ranges != null && share.hasTicket(ticket)) {
+                    // continues a counted download, also once the share's downloads are used up
+                    downloadTicket = ticket;
+                } else if (!head && (ranges == null || !ranges.isEmpty())) {
+                    // everything else is a new download; without a cap, ranges that do not read byte 0
+                    // are left uncounted as parts of a segmented fetch
+                    counted = ranges == null || share.getMaxDownloads() > 0 || ranges.stream().anyMatch(r -> r.start == 0);
+                    if (counted) {
+                        downloadTicket = fileSharer.countDownload(share, etag != null);
+                        if (downloadTicket == null) {
+                            counted = false;
+                            sendText(exchange, 404, "No share for this invite code");
+                            return;
+                        }
+                    }
+                }
+                // the download is over once its last byte has gone out
+                boolean reachesEnd = ranges == null || ranges.stream().anyMatch(r -> r.end == size - 1);
+                whole = ranges == null || ranges.stream().anyMatch(r -> r.start == 0 && r.end == size - 1);
+
+                headers.add("Content-Disposition", contentDisposition(content.getName()));
+                headers.add("Accept-Ranges", size >= 0 ? "bytes" : "none");
+                // a segmented client reads the ticket off the first response and sends it with every
+                // further segment, so the segments continue this download instead of counting
+                headers.add("Access-Control-Expose-Headers", "Accept-Ranges, Content-Range, ETag, X-Resume-Ticket");
+                if (etag != null) {
+                    boolean ticketed = downloadTicket != null && !downloadTicket.isEmpty();
+                    headers.add("ETag", ticketed ? etag.substring(0, etag.length() - 1) + ":" + downloadTicket + "\"" : etag);
+                    if (ticketed) headers.add("X-Resume-Ticket", downloadTicket);
                 }
+                if (lastModified > 0) headers.add("Last-Modified", HttpRange.httpDate(lastModified));
 
-                socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
-                // Read from socket input and stream to HTTP response
-                exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
-                // we can't know length ahead of time; use 0 length to indicate streaming
-                exchange.sendResponseHeaders(200, 0);
-                try (InputStream in = socket.getInputStream(); OutputStream out = exchange.getResponseBody()) {
-                    streamCopy(in, out);
+                if (ranges != null && ranges.isEmpty()) {
+                    headers.add("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
                 }
+                if (ranges == null) {
+                    headers.add("Content-Type", "application/octet-stream");
+                    // bundles generated while they are sent have no length up front and go out chunked
+                    if (head) {
+                        if (size >= 0) headers.set("Content-Length", String.valueOf(size));
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, size > 0 ? size : size == 0 ? -1 : 0);
+                    if (size != 0) {
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            sent = content.writeTo(out);
+                        }
+                    }
+                } else if (ranges.size() == 1) {
+                    HttpRange r = ranges.get(0);
+                    headers.add("Content-Type", "application/octet-stream");
+                    headers.add("Content-Range", r.contentRange(size));
+                    if (head) {
+                        headers.set("Content-Length", String.valueOf(r.length()));
+                        exchange.sendResponseHeaders(206, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(206, r.length());
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        sent = content.writeRange(out, r.start, r.length());
+                    }
+                } else {
+                    sent = sendByteRanges(exchange, content, ranges, size, head);
+                    if (head) return;
+                }
+                complete = reachesEnd;
             } catch (IOException e) {
-                String response = "Failed to download from peer: " + e.getMessage();
-                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
-                byte[] respBytes = response.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(500, respBytes.length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(respBytes);
+                // the status line is out; all that is left is to drop the connection
+                System.err.println("Download of " + code + " failed: " + e.getMessage());
+            } finally {
+                if (content != shared) content.release();
+                // a range reaching the end may come before other segments of the same download: only
+                // the whole content uses up the ticket, otherwise it lapses after the resume window
+                fileSharer.closeDownload(share, downloadTicket, counted, sent, complete, complete && whole);
+            }
+        }
+
+        /**
+         * 206 with a multipart/byteranges body, one part per range in request order. The part
+         * headers are built first so the response carries an exact Content-Length.
+         */
+        private long sendByteRanges(HttpExchange exchange, SharedContent content, List<HttpRange> ranges, long size,
+                                    boolean head) throws IOException {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>();
+            long length = 0;
+            for (HttpRange r : ranges) {
+                byte[] h = ("\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: "
+                        + r.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(h);
+                length += h.length + r.length();
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            length += closing.length;
+
+            exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            if (head) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(206, -1);
+                return 0;
+            }
+            exchange.sendResponseHeaders(206, length);
+            long sent = 0;
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    HttpRange r = ranges.get(i);
+                    out.write(partHeaders.get(i));
+                    sent += content.writeRange(out, r.start, r.length());
+                }
+                out.write(closing);
+            }
+            return sent;
+        }
+
+        /**
+         * Strong validator for If-Range: the blob digest, the file's length and modification time,
+         * or for other content of known size the share code and size (bundles change size on append).
+         */
+        private String etagOf(Share share, SharedContent content) {
+            if (content instanceof BlobContent) {
+                return "\"" + ((BlobContent) content).getDigest() + "\"";
+            }
+            if (content instanceof FileContent) {
+                File f = ((FileContent) content).getFile();
+                return "\"" + Long.toHexString(f.length()) + "-" + Long.toHexString(f.lastModified()) + "\"";
+            }
+            long size = content.size();
+            return size >= 0 ? "\"" + share.getCode() + "-" + Long.toHexString(size) + "\"" : null;
+        }
+    }
+
+    // ---------------- BUNDLE ENTRY handler ----------------
+    /**
+     * Single entries of a bundle share, without downloading the whole archive:
+     * - GET /download/{code}/entries      => JSON list of the entries
+     * - GET /download/{code}/entry/{name} => the entry's bytes
+     * Bundles generated at download time (zip or tar) are answered from their manifest; bundle zip files from
+     * their cached central directory (STORED entries are copied with transferTo, DEFLATED ones
+     * inflated on the fly). Listing the entries is free; every entry fetched counts as a download
+     * of the share, so a share with a download cap cannot be emptied entry by entry past its cap.
+     */
+    private class BundleEntryHandler {
+        /** What an entry fetch reports to FileSharer.closeDownload. */
+        private class Fetch {
+            boolean counted;
+            long sent;
+            boolean complete;
+        }
+
+        void handle(HttpExchange exchange, String code, String rest) throws IOException {
+            Share share = fileSharer.openDownload(code, null);
+            if (share == null) {
+                sendText(exchange, 404, "No share for this invite code");
+                return;
+            }
+            // a snapshot is not changed by appends that happen while it is read
+            SharedContent content = share.getContent();
+            SharedContent snapshot = content.snapshot();
+            Fetch fetch = new Fetch();
+            try {
+                handle(exchange, share, snapshot, rest, fetch);
+            } finally {
+                if (snapshot != content) snapshot.release();
+                fileSharer.closeDownload(share, null, fetch.counted, fetch.sent, fetch.complete);
+            }
+        }
+
+        private void handle(HttpExchange exchange, Share share, SharedContent content, String rest, Fetch fetch) throws IOException {
+            ZipIndex index = null;
+            if (!(content instanceof BundleContent)) {
+                if (!(content instanceof FileContent) || !content.getName().toLowerCase(Locale.ROOT).endsWith(".zip")) {
+                    sendText(exchange, 400, "Bad Request: share is not a bundle");
+                    return;
+                }
+                try {
+                    index = ZipIndex.of(((FileContent) content).getFile());
+                } catch (IOException e) {
+                    sendText(exchange, 400, "Bad Request: share is not a readable zip: " + e.getMessage());
+                    return;
+                }
+            }
+
+            if (rest.equals("/entries")) {
+                ObjectNode res = objectMapper.createObjectNode();
+                res.put("name", content.getName());
+                ArrayNode list = res.putArray("entries");
+                if (index == null) {
+                    for (SharedContent entry : ((BundleContent) content).getEntries()) {
+                        list.addObject().put("name", entry.getName()).put("size", entry.size());
+                    }
+                } else {
+                    for (ZipIndex.Entry entry : index.getEntries()) {
+                        list.addObject().put("name", entry.getName()).put("size", entry.getSize())
+                                .put("compressedSize", entry.getCompressedSize())
+                                .put("method", entry.isStored() ? "stored" : "deflated");
+                    }
+                }
+                sendJson(exchange, 200, res);
+                return;
+            }
+            if (!rest.startsWith("/entry/") || rest.length() == "/entry/".length()) {
+                sendText(exchange, 404, "Not Found");
+                return;
+            }
+            String name = rest.substring("/entry/".length());
+
+            SharedContent member = null;
+            ZipIndex.Entry entry = null;
+            if (index == null) {
+                member = ((BundleContent) content).findEntry(name);
+            } else {
+                entry = index.find(name);
+            }
+            if (member == null && entry == null) {
+                sendText(exchange, 404, "No such entry: " + name);
+                return;
+            }
+            if (fileSharer.countDownload(share, false) == null) {
+                sendText(exchange, 404, "No share for this invite code");
+                return;
+            }
+            fetch.counted = true;
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Content-Type", "application/octet-stream");
+            headers.add("Content-Disposition", contentDisposition(name.substring(name.lastIndexOf('/') + 1)));
+            long size = member != null ? member.size() : entry.getSize();
+            exchange.sendResponseHeaders(200, size > 0 ? size : size == 0 ? -1 : 0);
+            if (size == 0) {
+                fetch.complete = true;
+                return;
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (member != null) {
+                    fetch.sent = member.writeTo(out);
+                } else if (entry.isStored()) {
+                    fetch.sent = index.transferStored(entry, Channels.newChannel(out));
+                } else {
+                    try (InputStream in = index.openEntry(entry)) {
+                        fetch.sent = in.transferTo(out);
+                    }
                 }
             }
+            fetch.complete = true;
+        }
+    }
 
+    // ---------------- METRICS handler ----------------
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                String response = "Method Not Allowed";
+                exchange.sendResponseHeaders(405, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+            sendJson(exchange, 200, Metrics.snapshot());
         }
     }
 
@@ -421,9 +1005,9 @@ public class FileController {
 
             String method = (jsonMap.get("method") instanceof String) ? (String) jsonMap.get("method") : null;
             String target = (jsonMap.get("target") instanceof String) ? (String) jsonMap.get("target") : null;
-            Integer port = (jsonMap.get("port") instanceof Number) ? ((Number) jsonMap.get("port")).intValue() : null;
+            String code = (jsonMap.get("code") instanceof String) ? UploadUtils.normalizeCode((String) jsonMap.get("code")) : null;
 
-            if (method == null || port == null) {
+            if (method == null || code == null) {
                 String response = "Bad Request: missing fields";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -434,7 +1018,7 @@ public class FileController {
 
             try {
                 if ("email".equalsIgnoreCase(method)) {
-                    boolean ok = sendEmailShare(target, port);
+                    boolean ok = sendEmailShare(target, code);
                     if (ok) {
                         ObjectNode res = objectMapper.createObjectNode();
                         res.put("status", "sent");
@@ -457,7 +1041,7 @@ public class FileController {
                     // fallback: return share object for copy/paste
                     ObjectNode res = objectMapper.createObjectNode();
                     String base = (System.getenv("APP_BASE_URL") != null) ? System.getenv("APP_BASE_URL") : ("http://localhost:8080");
-                    res.put("url", base + "/download/" + port);
+                    res.put("url", base + "/download/" + code);
                     byte[] bytes = res.toString().getBytes(StandardCharsets.UTF_8);
                     exchange.getResponseHeaders().add("Content-Type", "application/json");
                     exchange.sendResponseHeaders(200, bytes.length);
@@ -479,7 +1063,7 @@ public class FileController {
          * Send simple email using SMTP environment variables:
          * SMTP_HOST, SMTP_PORT, SMTP_USER, SMTP_PASS, SMTP_FROM
          */
-        private boolean sendEmailShare(String toAddress, int port) {
+        private boolean sendEmailShare(String toAddress, String code) {
             String host = System.getenv("SMTP_HOST");
             if (host == null || host.isEmpty()) return false;
             String portStr = System.getenv("SMTP_PORT");
@@ -512,7 +1096,7 @@ public class FileController {
                 message.setRecipients(javax.mail.Message.RecipientType.TO, javax.mail.internet.InternetAddress.parse(toAddress));
                 message.setSubject("PeerLink file share");
                 String base = (System.getenv("APP_BASE_URL") != null) ? System.getenv("APP_BASE_URL") : ("http://localhost:8080");
-                String body = "You have a file available. Download using port: " + port + "\n\nDirect URL (if available): " + base + "/download/" + port;
+                String body = "You have a file available. Download using invite code: " + code + "\n\nDirect URL (if available): " + base + "/download/" + code;
                 message.setText(body);
                 javax.mail.Transport.send(message);
                 return true;
@@ -523,210 +1107,149 @@ public class FileController {
         }
     }
 
-    // ---------------- Helper methods ----------------
-    private static String safeFileName(String name) {
-        if (name == null) return "file";
-        // replace characters that could be problematic in filenames
-        String cleaned = name.replaceAll("[\\\\/:*?\"<>|]", "_");
-        if (cleaned.length() > 200) cleaned = cleaned.substring(0, 200);
-        return cleaned;
+    // ---------------- Share helpers ----------------
+    /**
+     * Offer content to FileSharer and answer with the upload JSON
+     * (inviteCode, fileCount, servedName, isZip, maxDownloads, expiresAt). Releases the content if it cannot be offered.
+     * ?maxDownloads=N and ?ttl=seconds on the request that completes the upload override the defaults.
+     */
+    private void offerAndRespond(HttpExchange exchange, SharedContent contentToOffer, int fileCount, boolean isZip) throws IOException {
+        offerAndRespond(exchange, contentToOffer, fileCount, isZip, Collections.emptyMap());
     }
 
-    private static void streamCopy(InputStream in, OutputStream out) throws IOException {
-        byte[] buf = new byte[8192];
-        int len;
-        while ((len = in.read(buf)) != -1) {
-            out.write(buf, 0, len);
+    private void offerAndRespond(HttpExchange exchange, SharedContent contentToOffer, int fileCount, boolean isZip,
+                                 Map<String, String> formFields) throws IOException {
+        long maxDownloads = shareOption(exchange, formFields, "maxDownloads", fileSharer.getDefaultMaxDownloads());
+        long ttl = shareOption(exchange, formFields, "ttl", fileSharer.getDefaultTtlSeconds());
+        if (maxDownloads < 0 || maxDownloads > Integer.MAX_VALUE || ttl < 0) {
+            contentToOffer.release();
+            sendText(exchange, 400, "Bad Request: invalid " + (ttl < 0 ? "ttl" : "maxDownloads"));
+            return;
+        }
+        // Offer the chosen content (single file or zip) to FileSharer
+        String inviteCode;
+        try {
+            inviteCode = fileSharer.offerContent(contentToOffer, (int) maxDownloads, ttl);
+        } catch (Exception ex) {
+            contentToOffer.release();
+            sendText(exchange, 500, "Failed to offer file: " + ex.getMessage());
+            return;
         }
-        out.flush();
-    }
 
-    // ---------------- Small streaming multipart parser classes ----------------
-    // NOTE: This is a minimal streaming parser for typical multipart/form-data uploads.
-    // It does not implement all RFCs or handle every malformed input. It is sufficient
-    // for common browser uploads where each file part is separated by boundary lines.
+        respondShare(exchange, inviteCode, contentToOffer, fileCount, isZip);
+    }
 
-    private static class MultipartPart {
-        private final Map<String, String> headers;
-        private final InputStream in;
+    /**
+     * A non-negative number from a form field or the query string; -1 if it is not one.
+     */
+    private static long shareOption(HttpExchange exchange, Map<String, String> formFields, String name, long def) {
+        String v = formFields.containsKey(name) ? formFields.get(name) : queryParam(exchange, name);
+        if (v == null || v.isEmpty()) return def;
+        try {
+            return Math.max(Long.parseLong(v), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        MultipartPart(Map<String, String> headers, InputStream in) {
-            this.headers = headers;
-            this.in = in;
+    private void respondShare(HttpExchange exchange, String inviteCode, SharedContent contentToOffer, int fileCount, boolean isZip) throws IOException {
+        ObjectNode res = objectMapper.createObjectNode();
+        res.put("inviteCode", inviteCode);
+        res.put("fileCount", fileCount);
+        res.put("servedName", contentToOffer.getName());
+        res.put("isZip", isZip);
+        if (contentToOffer instanceof BlobContent) {
+            res.put("sha256", ((BlobContent) contentToOffer).getDigest());
         }
+        Share share = fileSharer.getShare(inviteCode);
+        if (share != null) {
+            res.put("maxDownloads", share.getMaxDownloads());
+            res.put("downloads", share.getDownloads());
+            if (share.getExpiresAt() > 0) res.put("expiresAt", share.getExpiresAt());
+            // only the uploader sees this response; the token lets them append with ?append=
+            if (contentToOffer instanceof BundleContent || contentToOffer instanceof ZipBundleFile) {
+                res.put("appendToken", share.getAppendToken());
+            }
+        }
+        sendJson(exchange, 200, res);
+    }
 
-        Map<String, String> getHeaders() {
-            return headers;
+    // ---------------- Helper methods ----------------
+    private static File uploadDir() {
+        // Ensure upload directory exists
+        File uploadDir = new File(System.getenv().getOrDefault("UPLOAD_DIR", "uploads"));
+        if (!uploadDir.exists()) uploadDir.mkdirs();
+        return uploadDir;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
         }
+    }
 
-        InputStream getInputStream() {
-            return in;
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
         }
     }
 
     /**
-     * MultipartStreamReader - reads parts from an InputStream separated by boundary bytes.
-     * It yields MultipartPart objects containing headers and an InputStream that reads the
-     * part's body until the boundary.
+     * First value of a query parameter, or null.
      */
-    private static class MultipartStreamReader {
-        private final InputStream in;
-        private final byte[] boundary; // e.g. "--boundary"
-        private final byte[] boundaryWithCrLf; // CRLF + --boundary
-        private final byte[] buffer = new byte[8192];
-
-        MultipartStreamReader(InputStream in, byte[] boundary) {
-            this.in = in;
-            this.boundary = boundary;
-            this.boundaryWithCrLf = ("\r\n" + new String(boundary, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
         }
+        return null;
+    }
 
-        /**
-         * Read the next part. Returns null when no more parts.
-         */
-        MultipartPart readNextPart() throws IOException {
-            // Read until the first boundary
-            int b;
-            // read until boundary line is found
-            if (!skipToFirstBoundary()) return null;
-
-            // Read headers
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            while ((line = readLine(in)) != null) {
-                if (line.isEmpty()) break; // blank line = end headers
-                int colon = line.indexOf(':');
-                if (colon > 0) {
-                    String name = line.substring(0, colon).trim();
-                    String val = line.substring(colon + 1).trim();
-                    headers.put(name, val);
-                }
-            }
-
-            // The part body InputStream needs to read until boundary occurs.
-            // We'll create a piped approach: read bytes and buffer until boundary found.
-            PipedOutputStream pos = new PipedOutputStream();
-            PipedInputStream pis = new PipedInputStream(pos, 8192);
-
-            // Launch a background thread to stream part content into the piped output until boundary
-            Thread t = new Thread(() -> {
-                try {
-                    readPartDataInto(pos);
-                } catch (IOException ex) {
-                    // close quietly
-                } finally {
-                    try {
-                        pos.close();
-                    } catch (IOException ignore) { }
-                }
-            });
-            t.setDaemon(true);
-            t.start();
-
-            return new MultipartPart(headers, pis);
-        }
+    private static String safeFileName(String name) {
+        if (name == null) return "file";
+        // replace characters that could be problematic in filenames
+        String cleaned = name.replaceAll("[\\\\/:*?\"<>|]", "_");
+        if (cleaned.length() > 200) cleaned = cleaned.substring(0, 200);
+        return cleaned;
+    }
 
-        private boolean skipToFirstBoundary() throws IOException {
-            // Read until we encounter boundary line starting with "--"
-            // First, read lines until a line equals the boundary string or boundary prefixed with --
-            String line;
-            while ((line = readLine(in)) != null) {
-                if (line.equals(new String(boundary, StandardCharsets.UTF_8))) {
-                    return true;
-                }
-                // On some clients the first boundary may be prefixed by '--'
-                if (line.equals(new String(boundary, StandardCharsets.UTF_8) + "--")) {
-                    return false;
-                }
-            }
-            return false;
+    /**
+     * Content-Disposition value for a download. Names come from uploads and URLs, so the quoted
+     * filename is reduced to printable ASCII without quotes or backslashes (a CR/LF would end the
+     * header); the exact name follows as an RFC 6266 / RFC 5987 filename* parameter.
+     */
+    static String contentDisposition(String filename) {
+        StringBuilder ascii = new StringBuilder(filename.length());
+        for (int i = 0; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            ascii.append(c < 0x20 || c > 0x7e || c == '"' || c == '\\' ? '_' : c);
         }
+        String encoded = URLEncoder.encode(filename, StandardCharsets.UTF_8).replace("+", "%20").replace("*", "%2A");
+        return "attachment; filename=\"" + ascii + "\"; filename*=UTF-8''" + encoded;
+    }
 
-        private void readPartDataInto(OutputStream out) throws IOException {
-            // read bytes and write to out until we detect boundary sequence preceded by CRLF
-            ByteArrayOutputStream matchBuf = new ByteArrayOutputStream();
-            int mIndex = 0;
-
-            // We'll use a sliding window buffer to detect the boundary with preceding CRLF.
-            // Keep last N bytes equal to boundaryWithCrLf length to check for match.
-            int len;
-            byte[] small = new byte[4096];
-            // We will read the stream byte-by-byte to detect the boundary reliably.
-            int prev = -1;
-            boolean first = true;
-            // Use a ring buffer
-            Deque<Byte> ring = new ArrayDeque<>();
-
-            int boundaryLen = boundaryWithCrLf.length;
-            int b;
-            // We will read bytes and check if the tail equals boundaryWithCrLf or boundary + "--"
-            ByteArrayOutputStream tail = new ByteArrayOutputStream();
-
-            while ((b = in.read()) != -1) {
-                tail.write(b);
-                // keep tail limited
-                if (tail.size() > boundaryLen + 4) {
-                    // flush earliest bytes to output
-                    byte[] tb = tail.toByteArray();
-                    out.write(tb[0]); // write oldest
-                    byte[] newTail = Arrays.copyOfRange(tb, 1, tb.length);
-                    tail.reset();
-                    tail.write(newTail);
-                }
-
-                byte[] tailArr = tail.toByteArray();
-                String tailStr = new String(tailArr, StandardCharsets.UTF_8);
-
-                // Check if tail ends with \r\n--boundary
-                if (tailArr.length >= boundaryWithCrLf.length) {
-                    int start = tailArr.length - boundaryWithCrLf.length;
-                    boolean match = true;
-                    for (int i = 0; i < boundaryWithCrLf.length; i++) {
-                        if (tailArr[start + i] != boundaryWithCrLf[i]) {
-                            match = false;
-                            break;
-                        }
-                    }
-                    if (match) {
-                        // remove the boundary and trailing CRLF from the output (we didn't write it yet)
-                        // write remaining bytes before boundary (tailArr[0..start-1]) to out
-                        if (start > 0) out.write(tailArr, 0, start);
-                        // consume the rest of the line (there may be "--" indicating final boundary)
-                        // read the remainder of the line
-                        String rest = readLine(in); // read until newline
-                        return;
-                    }
-                }
-
-                // if not matched and tail has exceeded some bytes, flush earliest
-                if (tail.size() > boundaryWithCrLf.length) {
-                    out.write(tailArr[0]);
-                    byte[] newTail = Arrays.copyOfRange(tailArr, 1, tailArr.length);
-                    tail.reset();
-                    tail.write(newTail);
-                }
-            }
+    private static void releaseAll(List<SharedContent> contents) {
+        for (SharedContent c : contents) {
+            try { c.release(); } catch (Exception ignore) {}
         }
+    }
 
-        private String readLine(InputStream in) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int prev = -1;
-            int b;
-            while ((b = in.read()) != -1) {
-                if (b == '\n') {
-                    break;
-                }
-                if (prev == '\r' && b == '\n') {
-                    break;
-                }
-                baos.write(b);
-                prev = b;
-            }
-            if (baos.size() == 0 && b == -1) return null;
-            String line = new String(baos.toByteArray(), StandardCharsets.UTF_8);
-            // trim CR if present
-            if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
-            return line;
+    private static long parseContentLength(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,106 @@
+package p2p.controller;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HttpRange - one satisfiable byte range of a "Range: bytes=..." request header (RFC 9110, 14.2).
+ *
+ * parse() follows the RFC's leniency rules: a header that is not a valid bytes range set is ignored
+ * (the whole content is served), ranges that start beyond the end are dropped, and if none is left
+ * the request is unsatisfiable (416). More than MAX_RANGES ranges are ignored as well, so a request
+ * cannot make the server write thousands of tiny parts.
+ */
+final class HttpRange {
+
+    static final int MAX_RANGES = 16;
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    final long start;
+    final long end; // inclusive
+
+    HttpRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Value for the Content-Range header.
+     */
+    String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * @return the satisfiable ranges for content of 'size' bytes in request order (empty if none is),
+     * or null if the header is to be ignored
+     */
+    static List<HttpRange> parse(String header, long size) {
+        if (header == null) return null;
+        String h = header.trim();
+        if (!h.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = h.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        List<HttpRange> ranges = new ArrayList<>();
+        for (String raw : specs) {
+            String spec = raw.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // suffix range: the last N bytes
+                    long n = Long.parseLong(last);
+                    if (n < 0 || last.startsWith("+")) return null;
+                    if (n > 0 && size > 0) ranges.add(new HttpRange(Math.max(size - n, 0), size - 1));
+                } else {
+                    long s = Long.parseLong(first);
+                    long e = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (s < 0 || e < s || first.startsWith("+") || last.startsWith("+")) return null;
+                    if (s < size) ranges.add(new HttpRange(s, Math.min(e, size - 1)));
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Whether an If-Range precondition holds, i.e. the ranges may be served: an entity tag must
+     * match 'etag' strongly, a date must equal the content's Last-Modified time.
+     */
+    static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) return true;
+        String v = ifRange.trim();
+        if (v.startsWith("\"") || v.startsWith("W/")) {
+            return etag != null && v.equals(etag);
+        }
+        if (lastModified <= 0) return false;
+        try {
+            long date = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return date == lastModified / 1000 * 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * HTTP-date for a Last-Modified header.
+     */
+    static String httpDate(long epochMillis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * MultipartPart - headers of a single multipart/form-data part plus a stream over its body.
+ */
+class MultipartPart {
+    private final Map<String, String> headers;
+    private final String name;
+    private final String filename;
+    private final MultipartStreamReader.PartInputStream in;
+
+    MultipartPart(Map<String, String> headers, String name, String filename, MultipartStreamReader.PartInputStream in) {
+        this.headers = headers;
+        this.name = name;
+        this.filename = filename;
+        this.in = in;
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Form field name from Content-Disposition (name="..."), or null.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Client file name from Content-Disposition (filename="..."), or null for plain form fields.
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Write the (remaining) part body to the channel. Returns the number of bytes written.
+     */
+    long transferTo(WritableByteChannel ch) throws IOException {
+        return in.transferTo(ch);
+    }
+}
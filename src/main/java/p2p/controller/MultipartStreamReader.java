@@ -0,0 +1,413 @@
+package p2p.controller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MultipartStreamReader - reads parts from an InputStream separated by boundary bytes.
+ * It yields MultipartPart objects containing headers and an InputStream that reads the
+ * part's body until the boundary.
+ *
+ * NOTE: This is a minimal streaming parser for typical multipart/form-data uploads.
+ * It does not implement all RFCs or handle every malformed input. It is sufficient
+ * for common browser uploads where each file part is separated by boundary lines.
+ *
+ * The request body is read in large blocks into a single reusable buffer. Part bodies are
+ * scanned for the CRLF + boundary delimiter with a Boyer-Moore-Horspool search, and
+ * everything before a match is handed out in bulk. Part streams are pulled synchronously on
+ * the caller's thread; only the most recently returned part can be read.
+ */
+class MultipartStreamReader {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final String CONTENT_DISPOSITION = "Content-Disposition";
+    static final String CONTENT_TYPE = "Content-Type";
+    private static final byte[] CONTENT_DISPOSITION_LOWER = "content-disposition".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE_LOWER = "content-type".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME_PARAM = "name=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FILENAME_PARAM = "filename=".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[] boundary; // e.g. "--boundary"
+    private final byte[] boundaryWithCrLf; // CRLF + --boundary
+    private final int[] skip = new int[256]; // Horspool bad-character shift table for boundaryWithCrLf
+    private final ByteBuffer byteBuffer; // heap buffer backing 'buffer', used for channel writes
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+
+    private boolean started; // first boundary line has been consumed
+    private boolean finished; // closing boundary ("--boundary--") has been seen
+    private PartInputStream current; // body stream of the part handed out last
+
+    MultipartStreamReader(InputStream in, byte[] boundary) {
+        this(in, boundary, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    /**
+     * @param buf heap buffer to parse in (e.g. taken from a BufferPool); owned by the caller
+     */
+    MultipartStreamReader(InputStream in, byte[] boundary, ByteBuffer buf) {
+        if (!buf.hasArray() || buf.capacity() < boundary.length + 4) {
+            throw new IllegalArgumentException("MultipartStreamReader needs a heap buffer larger than the boundary");
+        }
+        this.in = in;
+        this.byteBuffer = buf;
+        this.buffer = buf.array();
+        this.boundary = boundary;
+        this.boundaryWithCrLf = new byte[boundary.length + 2];
+        boundaryWithCrLf[0] = '\r';
+        boundaryWithCrLf[1] = '\n';
+        System.arraycopy(boundary, 0, boundaryWithCrLf, 2, boundary.length);
+
+        int last = boundaryWithCrLf.length - 1;
+        for (int i = 0; i < skip.length; i++) skip[i] = boundaryWithCrLf.length;
+        for (int i = 0; i < last; i++) skip[boundaryWithCrLf[i] & 0xff] = last - i;
+    }
+
+    /**
+     * Read the next part. Returns null when no more parts.
+     */
+    MultipartPart readNextPart() throws IOException {
+        if (current != null) {
+            // the caller did not read the previous part to the end: skip what is left of it
+            current.drain();
+            current = null;
+        }
+        if (finished) return null;
+        if (!started) {
+            // read until boundary line is found
+            if (!skipToFirstBoundary()) return null;
+            started = true;
+        }
+
+        // Read headers: ASCII lines parsed in place in the buffer, up to the blank line
+        Map<String, String> headers = new HashMap<>(4);
+        String name = null;
+        String filename = null;
+        while (true) {
+            int nl = nextLineEnd();
+            int start = pos;
+            int end = (nl < 0) ? limit : nl;
+            if (end > start && buffer[end - 1] == '\r') end--;
+            pos = (nl < 0) ? limit : nl + 1;
+            if (end == start) break; // blank line = end headers (or end of stream)
+
+            int colon = indexOf((byte) ':', start, end);
+            if (colon <= start) continue;
+            String headerName = headerName(start, trimEnd(start, colon));
+            int vs = trimStart(colon + 1, end);
+            int ve = trimEnd(vs, end);
+            if (headerName == CONTENT_DISPOSITION) {
+                name = dispositionParam(NAME_PARAM, vs, ve);
+                filename = dispositionParam(FILENAME_PARAM, vs, ve);
+            }
+            headers.put(headerName, new String(buffer, vs, ve - vs, StandardCharsets.UTF_8));
+            if (nl < 0) break;
+        }
+
+        current = new PartInputStream();
+        return new MultipartPart(headers, name, filename, current);
+    }
+
+    private boolean skipToFirstBoundary() throws IOException {
+        // Read lines (the preamble) until a line equals the boundary string.
+        while (true) {
+            int nl = nextLineEnd();
+            int start = pos;
+            int end = (nl < 0) ? limit : nl;
+            if (end > start && buffer[end - 1] == '\r') end--;
+            pos = (nl < 0) ? limit : nl + 1;
+
+            int len = end - start;
+            if (len >= boundary.length && regionEquals(start, boundary)) {
+                if (len == boundary.length) return true;
+                // An empty body consists of the closing boundary only
+                if (len == boundary.length + 2 && buffer[end - 2] == '-' && buffer[end - 1] == '-') {
+                    finished = true;
+                    return false;
+                }
+            }
+            if (nl < 0) return false;
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for boundaryWithCrLf in buffer[from, to).
+     * Returns the index of the first match or -1.
+     */
+    private int indexOfDelimiter(int from, int to) {
+        byte[] d = boundaryWithCrLf;
+        int last = d.length - 1;
+        byte lastByte = d[last];
+        int i = from;
+        while (i + last < to) {
+            byte b = buffer[i + last];
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && buffer[i + j] == d[j]) j--;
+                if (j < 0) return i;
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * After a delimiter: "--" marks the closing boundary; anything else up to the line end is padding.
+     */
+    private void consumeDelimiterLineEnd() throws IOException {
+        while (limit - pos < 2) {
+            if (fill() == -1) {
+                // closing boundary without a trailing CRLF
+                finished = true;
+                pos = limit;
+                return;
+            }
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+        }
+        int nl = nextLineEnd();
+        pos = (nl < 0) ? limit : nl + 1;
+    }
+
+    /**
+     * Index of the next '\n' at or after pos, reading more input as needed. Returns -1 at end of
+     * stream, in which case buffer[pos, limit) is an unterminated last line. pos is not moved.
+     */
+    private int nextLineEnd() throws IOException {
+        int scanned = pos;
+        while (true) {
+            int nl = indexOf((byte) '\n', scanned, limit);
+            if (nl >= 0) return nl;
+            if (pos == 0 && limit == buffer.length) {
+                throw new IOException("Multipart line exceeds " + buffer.length + " bytes");
+            }
+            scanned = limit - pos;
+            if (fill() == -1) return -1;
+            scanned += pos;
+        }
+    }
+
+    // ---------------- ASCII helpers over the buffer ----------------
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int at, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[at + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /** Compare buffer[at, at + expected.length) against lower-case ASCII bytes, ignoring case. */
+    private boolean regionEqualsIgnoreCase(int at, byte[] expectedLower) {
+        for (int i = 0; i < expectedLower.length; i++) {
+            int c = buffer[at + i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != expectedLower[i]) return false;
+        }
+        return true;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) to--;
+        return to;
+    }
+
+    /**
+     * Header name for buffer[start, end). Well-known names map to shared constants (so callers
+     * can compare them by identity); anything else is decoded as ASCII.
+     */
+    private String headerName(int start, int end) {
+        int len = end - start;
+        if (len == CONTENT_DISPOSITION_LOWER.length && regionEqualsIgnoreCase(start, CONTENT_DISPOSITION_LOWER)) {
+            return CONTENT_DISPOSITION;
+        }
+        if (len == CONTENT_TYPE_LOWER.length && regionEqualsIgnoreCase(start, CONTENT_TYPE_LOWER)) {
+            return CONTENT_TYPE;
+        }
+        return new String(buffer, start, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Value of a Content-Disposition parameter (e.g. filename="a.txt") in buffer[from, to),
+     * or null if absent. paramLower is the lower-case parameter name followed by '='.
+     */
+    private String dispositionParam(byte[] paramLower, int from, int to) {
+        int i = from;
+        while (i < to) {
+            // parameters start after ';' (the first token is the disposition type)
+            int semi = indexOf((byte) ';', i, to);
+            if (semi < 0) return null;
+            i = trimStart(semi + 1, to);
+            if (to - i >= paramLower.length && regionEqualsIgnoreCase(i, paramLower)) {
+                int vs = i + paramLower.length;
+                String value;
+                if (vs < to && buffer[vs] == '"') {
+                    int ve = vs + 1;
+                    while (ve < to && buffer[ve] != '"') {
+                        if (buffer[ve] == '\\') ve++;
+                        ve++;
+                    }
+                    value = new String(buffer, vs + 1, Math.min(ve, to) - vs - 1, StandardCharsets.UTF_8);
+                    if (value.indexOf('\\') >= 0) value = value.replaceAll("\\\\(.)", "$1");
+                } else {
+                    int ve = indexOf((byte) ';', vs, to);
+                    value = new String(buffer, vs, trimEnd(vs, ve < 0 ? to : ve) - vs, StandardCharsets.UTF_8);
+                }
+                // decode in case browser encoded it
+                if (value.indexOf('%') >= 0) {
+                    try {
+                        value = URLDecoder.decode(value, StandardCharsets.UTF_8);
+                    } catch (IllegalArgumentException ignore) {
+                        // not actually percent-encoded; keep as sent
+                    }
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compact unread bytes to the start of the buffer and read more from the stream.
+     * Returns the number of bytes read or -1 at end of stream.
+     */
+    private int fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n;
+        do {
+            n = in.read(buffer, limit, buffer.length - limit);
+        } while (n == 0);
+        if (n > 0) {
+            limit += n;
+        }
+        return n;
+    }
+
+    /**
+     * PartInputStream - synchronous view of the current part's body. Reads are served straight
+     * from the reader's buffer and end (return -1) at the next delimiter, which is consumed.
+     */
+    class PartInputStream extends InputStream {
+        private int dataEnd; // buffer[pos, dataEnd) is known to be part data
+        private boolean delimiterAhead; // a delimiter starts at dataEnd
+        private boolean done;
+
+        PartInputStream() {
+            this.dataEnd = pos;
+        }
+
+        /**
+         * Make sure buffer[pos, dataEnd) is non-empty. Returns false once the delimiter is reached.
+         */
+        private boolean ensureData() throws IOException {
+            if (done) return false;
+            int keep = boundaryWithCrLf.length - 1;
+            while (pos == dataEnd) {
+                if (delimiterAhead) {
+                    pos += boundaryWithCrLf.length;
+                    done = true;
+                    consumeDelimiterLineEnd();
+                    return false;
+                }
+                int match = indexOfDelimiter(pos, limit);
+                if (match >= 0) {
+                    dataEnd = match;
+                    delimiterAhead = true;
+                    continue;
+                }
+                // Everything except a possible delimiter prefix at the end of the buffer is part data
+                dataEnd = Math.max(pos, limit - keep);
+                if (dataEnd == pos) {
+                    if (fill() == -1) {
+                        done = true;
+                        throw new EOFException("Unexpected end of multipart body (missing closing boundary)");
+                    }
+                    dataEnd = pos;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) return -1;
+            return buffer[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureData()) return -1;
+            int n = Math.min(len, dataEnd - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long total = 0;
+            while (ensureData()) {
+                int n = dataEnd - pos;
+                out.write(buffer, pos, n);
+                pos += n;
+                total += n;
+            }
+            return total;
+        }
+
+        /**
+         * Write the rest of the part body to a channel (e.g. a FileChannel) straight from the
+         * reader's buffer, without an intermediate byte[] copy.
+         */
+        long transferTo(WritableByteChannel ch) throws IOException {
+            long total = 0;
+            while (ensureData()) {
+                int n = dataEnd - pos;
+                byteBuffer.limit(dataEnd).position(pos);
+                while (byteBuffer.hasRemaining()) {
+                    ch.write(byteBuffer);
+                }
+                pos = dataEnd;
+                total += n;
+            }
+            byteBuffer.clear();
+            return total;
+        }
+
+        @Override
+        public int available() {
+            return done ? 0 : dataEnd - pos;
+        }
+
+        void drain() throws IOException {
+            while (ensureData()) pos = dataEnd;
+        }
+    }
+}
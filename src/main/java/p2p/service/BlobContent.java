@@ -0,0 +1,35 @@
+package p2p.service;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BlobContent - one share's reference to a blob in the BlobStore.
+ * Releasing it drops the reference; the store deletes the blob once nothing refers to it.
+ */
+public class BlobContent extends FileContent {
+
+    private final BlobStore store;
+    private final String digest;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    BlobContent(BlobStore store, File blob, String digest, String name) {
+        super(blob, name, false);
+        this.store = store;
+        this.digest = digest;
+    }
+
+    /**
+     * Lower-case hex SHA-256 of the content.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    @Override
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            store.release(digest);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package p2p.service;
+
+import p2p.utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * BlobStore - content-addressed storage for uploaded files.
+ *
+ * Every blob is stored once, as blobs/<sha-256 hex>, no matter how many shares refer to it.
+ * Shares hold a BlobContent; each one counts as a reference, and the blob file is deleted when
+ * the last reference is released. Blobs left on disk by an earlier run are reused (and adopted)
+ * when the same content is uploaded again.
+ */
+public class BlobStore {
+
+    private final File dir;
+    private final File tmpDir;
+    private final Map<String, Integer> refCounts = new HashMap<>();
+
+    public BlobStore(File dir) {
+        this.dir = dir;
+        this.tmpDir = new File(dir, "tmp");
+        tmpDir.mkdirs();
+    }
+
+    /**
+     * A fresh temporary file on the same filesystem as the blobs, for spooling an upload.
+     */
+    public File newTempFile() {
+        return new File(tmpDir, UUID.randomUUID().toString() + ".part");
+    }
+
+    /**
+     * Directory for temporary files on the same filesystem as the blobs.
+     */
+    public File getTempDir() {
+        return tmpDir;
+    }
+
+    /**
+     * Turn a fully written temporary file into a blob reference. If a blob with the same digest
+     * already exists the temporary file is dropped and the existing blob is shared.
+     *
+     * @param tempFile file from newTempFile(), consumed by this call
+     * @param digest   lower-case hex SHA-256 of the file's content
+     * @param name     name offered to the downloader
+     */
+    public synchronized BlobContent commit(File tempFile, String digest, String name) throws IOException {
+        File blob = blobFile(digest);
+        if (refCounts.containsKey(digest) || blob.isFile()) {
+            long size = tempFile.length();
+            Files.deleteIfExists(tempFile.toPath());
+            Metrics.increment("blobstore.dedupHits");
+            Metrics.add("blobstore.dedupBytesSaved", size);
+        } else {
+            Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Metrics.increment("blobstore.blobsStored");
+        }
+        refCounts.merge(digest, 1, Integer::sum);
+        return new BlobContent(this, blob, digest, name);
+    }
+
+    synchronized void release(String digest) {
+        Integer refs = refCounts.get(digest);
+        if (refs == null) return;
+        if (refs > 1) {
+            refCounts.put(digest, refs - 1);
+            return;
+        }
+        refCounts.remove(digest);
+        File blob = blobFile(digest);
+        if (blob.exists() && !blob.delete()) {
+            System.err.println("BlobStore: could not delete " + blob.getAbsolutePath());
+        }
+    }
+
+    public synchronized int getRefCount(String digest) {
+        return refCounts.getOrDefault(digest, 0);
+    }
+
+    public static boolean isDigest(String s) {
+        return s != null && s.matches("[0-9a-f]{64}");
+    }
+
+    private File blobFile(String digest) {
+        return new File(dir, digest);
+    }
+}
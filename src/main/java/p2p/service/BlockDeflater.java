@@ -0,0 +1,184 @@
+package p2p.service;
+
+import p2p.utils.Crc32Combine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BlockDeflater - pigz-style parallel DEFLATE of one large stream.
+ *
+ * The input is cut into fixed-size blocks that are compressed on separate threads, each primed
+ * with the last 32 KB of the previous block as its dictionary so matches across the cut are not
+ * lost. Every block but the last ends with a sync flush, which leaves the output byte-aligned, so
+ * the compressed blocks simply concatenate into one valid raw deflate stream. Each block's CRC-32
+ * is computed alongside and joined with Crc32Combine as the blocks are written out in order.
+ * At most 'window' blocks are in flight, which bounds memory to about window * blockSize * 2.
+ */
+public class BlockDeflater {
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final int window;
+    private final int level;
+
+    private long crc;
+    private long size;
+    private long compressedSize;
+
+    public BlockDeflater(ExecutorService pool, int blockSize, int window, int level) {
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.window = Math.max(window, 1);
+        this.level = level;
+    }
+
+    /**
+     * Compress all of 'in' into 'out' as a raw (nowrap) deflate stream. Neither stream is closed.
+     */
+    public void deflate(InputStream in, OutputStream out) throws IOException {
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        crc = 0;
+        size = 0;
+        compressedSize = 0;
+        try {
+            byte[] previous = null;
+            int previousLength = 0;
+            byte[] current = new byte[blockSize];
+            int currentLength = in.readNBytes(current, 0, blockSize);
+            while (true) {
+                // read one block ahead to know whether the current block is the last one
+                byte[] next = null;
+                int nextLength = 0;
+                if (currentLength == blockSize) {
+                    next = new byte[blockSize];
+                    nextLength = in.readNBytes(next, 0, blockSize);
+                }
+                boolean last = nextLength == 0;
+                Block block = new Block(current, currentLength, previous, previousLength, last);
+                pending.add(pool.submit(block::compress));
+                if (pending.size() >= window) writeBlock(await(pending.poll()), out);
+                if (last) break;
+                previous = current;
+                previousLength = currentLength;
+                current = next;
+                currentLength = nextLength;
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(await(pending.poll()), out);
+            }
+        } finally {
+            for (Future<Block> f : pending) f.cancel(true);
+        }
+    }
+
+    private void writeBlock(Block block, OutputStream out) throws IOException {
+        out.write(block.output, 0, block.outputLength);
+        crc = Crc32Combine.combine(crc, block.crc, block.length);
+        size += block.length;
+        compressedSize += block.outputLength;
+    }
+
+    /**
+     * CRC-32 of the uncompressed data (after deflate()).
+     */
+    public long getCrc() {
+        return crc;
+    }
+
+    /**
+     * Uncompressed bytes read (after deflate()).
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Compressed bytes written (after deflate()).
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    private static Block await(Future<Block> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        }
+    }
+
+    private final class Block {
+        final byte[] input;
+        final int length;
+        final byte[] dictionary;
+        final int dictionaryLength;
+        final boolean last;
+        byte[] output;
+        int outputLength;
+        long crc;
+
+        Block(byte[] input, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+            this.input = input;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.dictionaryLength = dictionaryLength;
+            this.last = last;
+        }
+
+        Block compress() {
+            CRC32 c = new CRC32();
+            c.update(input, 0, length);
+            crc = c.getValue();
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+                    deflater.setDictionary(dictionary, dictionaryLength - n, n);
+                }
+                deflater.setInput(input, 0, length);
+                // incompressible data grows slightly; start with room for that
+                output = new byte[length + length / 1000 + 64];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        grow();
+                        outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                    }
+                } else {
+                    int n;
+                    do {
+                        grow();
+                        n = deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+                        outputLength += n;
+                    } while (outputLength == output.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+
+        private void grow() {
+            if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+        }
+    }
+}
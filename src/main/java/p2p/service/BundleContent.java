@@ -0,0 +1,107 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * BundleContent - a multi-file share served as one archive that is generated while it is
+ * downloaded. Only the manifest (the uploaded parts) is kept; subclasses write the archive format.
+ */
+public abstract class BundleContent implements SharedContent {
+
+    private final String name;
+    protected final List<SharedContent> entries;
+    private boolean released;
+    private boolean view; // a snapshot: does not own the entries
+
+    /**
+     * @param entries the bundled parts, in archive order; owned by the bundle from now on
+     */
+    protected BundleContent(String name, List<SharedContent> entries) {
+        this.name = name;
+        this.entries = new CopyOnWriteArrayList<>(entries);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public List<SharedContent> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Add parts at the end of the bundle (they are only compressed when the bundle is generated).
+     *
+     * @return false if the bundle has been released meanwhile; the parts are not taken then
+     */
+    public synchronized boolean addEntries(List<SharedContent> parts) {
+        if (released) return false;
+        entries.addAll(parts);
+        return true;
+    }
+
+    /**
+     * A bundle of the same format over 'entries', used for snapshots.
+     */
+    protected abstract BundleContent withEntries(List<SharedContent> entries);
+
+    /**
+     * The bundle with the entries it has now. A download sizes and generates the snapshot, so parts
+     * appended meanwhile neither change its length nor show up halfway through the archive.
+     * Releasing the snapshot leaves the entries alone.
+     */
+    @Override
+    public SharedContent snapshot() {
+        BundleContent snapshot = withEntries(entries);
+        snapshot.view = true;
+        return snapshot;
+    }
+
+    /**
+     * The bundled part with this name, or null.
+     */
+    public SharedContent findEntry(String entryName) {
+        for (SharedContent entry : entries) {
+            if (entry.getName().equals(entryName)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Stream over the archive; it is generated by a background thread as the stream is read.
+     */
+    @Override
+    public InputStream openStream() throws IOException {
+        PipedInputStream in = new PipedInputStream(64 * 1024);
+        PipedOutputStream out = new PipedOutputStream(in);
+        Thread writer = new Thread(() -> {
+            try (out) {
+                writeTo(out);
+            } catch (IOException e) {
+                // reader went away or a part could not be read; the reader sees a truncated stream
+                System.err.println(getClass().getSimpleName() + ": stopped writing '" + name + "': " + e.getMessage());
+            }
+        }, "Bundle-Writer");
+        writer.setDaemon(true);
+        writer.start();
+        return in;
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (released || view) return;
+            released = true;
+        }
+        for (SharedContent entry : entries) {
+            entry.release();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package p2p.service;
+
+import p2p.utils.EnvUtils;
+import p2p.utils.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * CompressionPolicy - decides whether a bundle entry is worth deflating.
+ *
+ * Media, archives and office documents are already compressed; deflating them burns CPU for
+ * no gain, so they are STORED. Files with other names are probed: the first 64 KB are deflated at
+ * the fastest level, and if that saves less than 5% the entry is stored as well. Everything else
+ * is deflated at BUNDLE_DEFLATE_LEVEL (0-9, default 6).
+ */
+final class CompressionPolicy {
+
+    static final int LEVEL = Math.max(0, Math.min(9, EnvUtils.getInt("BUNDLE_DEFLATE_LEVEL", 6)));
+
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final int MIN_PROBE = 512;
+    private static final double MIN_SAVING = 0.05;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war", "apk", "whl",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub");
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * @return ZipBundleWriter.METHOD_STORED or ZipBundleWriter.METHOD_DEFLATED
+     */
+    static int chooseMethod(SharedContent content) throws IOException {
+        if (LEVEL == 0 || content.size() == 0) return ZipBundleWriter.METHOD_STORED;
+        if (COMPRESSED_EXTENSIONS.contains(extension(content.getName()))) {
+            Metrics.increment("bundle.storedByExtension");
+            return ZipBundleWriter.METHOD_STORED;
+        }
+        if (!probe(content)) {
+            Metrics.increment("bundle.storedByProbe");
+            return ZipBundleWriter.METHOD_STORED;
+        }
+        return ZipBundleWriter.METHOD_DEFLATED;
+    }
+
+    /**
+     * Trial-compress a sample from the start of the content.
+     *
+     * @return true if the sample shrinks enough to be worth deflating
+     */
+    private static boolean probe(SharedContent content) throws IOException {
+        byte[] sample;
+        try (InputStream in = content.openStream()) {
+            sample = in.readNBytes(PROBE_SIZE);
+        }
+        if (sample.length < MIN_PROBE) return true;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[sample.length];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+                if (compressed >= sample.length) return false;
+            }
+            return compressed <= sample.length * (1 - MIN_SAVING);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
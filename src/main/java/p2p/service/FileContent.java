@@ -0,0 +1,114 @@
+package p2p.service;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileContent - shared content backed by a file on disk.
+ * If the file is owned by the share (e.g. it was created by an upload) it is deleted on release.
+ * transferTo copies with FileChannel.transferTo, i.e. sendfile(2) when the target is a socket.
+ */
+public class FileContent implements SharedContent {
+
+    // bytes per transferTo call; sendfile moves at most ~2 GB per call anyway
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+    private static final int MAX_ZERO_TRANSFERS = 16;
+    private static final int RANGE_BUFFER = 64 * 1024;
+
+    private final File file;
+    private final String name;
+    private final boolean owned;
+
+    public FileContent(File file, String name, boolean owned) {
+        this.file = file;
+        this.name = name;
+        this.owned = owned;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long size() {
+        return getFile().length();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(getFile()), 16 * 1024);
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        try (FileChannel ch = FileChannel.open(getFile().toPath(), StandardOpenOption.READ)) {
+            return transferFully(ch, 0, ch.size(), target);
+        }
+    }
+
+    /**
+     * Reads the range with positional FileChannel reads, so ranges of one file can be served in
+     * parallel from separate channels without seeking a shared stream.
+     */
+    @Override
+    public long writeRange(OutputStream out, long offset, long length) throws IOException {
+        try (FileChannel ch = FileChannel.open(getFile().toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(RANGE_BUFFER, Math.max(length, 1)));
+            long pos = offset;
+            long end = offset + length;
+            while (pos < end) {
+                buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+                int n = ch.read(buf, pos);
+                if (n < 0) throw new EOFException("File ended at " + pos + " before the end of the range at " + end);
+                out.write(buf.array(), 0, n);
+                pos += n;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Copy [position, position + count) of 'ch' to a blocking 'target' in TRANSFER_CHUNK pieces,
+     * continuing after partial transfers.
+     *
+     * @throws EOFException if the file ends before position + count
+     */
+    static long transferFully(FileChannel ch, long position, long count, WritableByteChannel target) throws IOException {
+        long pos = position;
+        long end = position + count;
+        int zeroTransfers = 0;
+        while (pos < end) {
+            long n = ch.transferTo(pos, Math.min(end - pos, TRANSFER_CHUNK), target);
+            if (n > 0) {
+                pos += n;
+                zeroTransfers = 0;
+            } else if (pos >= ch.size()) {
+                throw new EOFException("File shrank to " + ch.size() + " bytes while sending " + end);
+            } else if (++zeroTransfers > MAX_ZERO_TRANSFERS) {
+                throw new IOException("No progress sending file at offset " + pos);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void release() {
+        if (owned && file.exists() && !file.delete()) {
+            System.err.println("FileContent: could not delete " + file.getAbsolutePath());
+        }
+    }
+}
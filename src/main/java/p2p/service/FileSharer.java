@@ -1,146 +1,386 @@
 package p2p.service;
 
+import p2p.utils.EnvUtils;
+import p2p.utils.Metrics;
+import p2p.utils.TimingWheel;
 import p2p.utils.UploadUtils;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple FileSharer:
- * - offerFile(String path) => returns an allocated port (registered)
- * - startFileServer(int port) => binds a ServerSocket on that port and streams the file bytes to the first client that connects
+ * - offerFile(String path) => returns an invite code (registered); codes are random Crockford base32
+ *   strings (UploadUtils.generateCode), looked up in a concurrent map
+ * - offerContent(SharedContent) => same for content that is not (only) a plain file, e.g. an in-memory upload
+ * - openDownload / countDownload / closeDownload => used by the HTTP DownloadHandler, which streams the content
+ *   itself; startDownload(code) / finishDownload(...) combine them for a plain whole-content download
+ * - direct-peer mode (DIRECT_PEER=true): registered content is also served by one TransferListener on TRANSFER_PORT
+ *   (default 9090, bound to TRANSFER_BIND, default 127.0.0.1): a client connects, sends "<inviteCode>\n" and
+ *   receives the raw bytes
  *
  * Notes:
- * - This implementation serves the file as raw bytes. The HTTP DownloadHandler in controller should stream the socket input to the HTTP response.
- * - This class intentionally keeps behavior simple and blocking for startFileServer (it blocks in accept()), so call it asynchronously.
+ * - A share serves any number of downloads at once, each from its own channel over the same file, so the
+ *   page cache is shared between recipients. With maxDownloads > 0 (per share, or SHARE_MAX_DOWNLOADS for
+ *   all shares; default 0 = unlimited) the registration is removed once that many downloads have started,
+ *   and the content is released after the last of them ends.
+ * - An interrupted HTTP download of a capped share gets a resume ticket: requests that present it continue
+ *   the download without counting again, even after the cap is reached, until the last byte has been sent
+ *   or the ticket went unused for SHARE_RESUME_SECONDS (default 3600). The share is kept until then.
+ * - Shares expire after a TTL (per share, or SHARE_TTL_SECONDS, default 86400), capped at SHARE_MAX_TTL_SECONDS
+ *   (default 7 days; 0 lets a TTL of 0 mean "never"). A TimingWheel with one-second ticks removes them and
+ *   releases their storage; downloads already running finish first.
+ * - Waiting shares hold no thread and no port; only transfers in progress occupy a listener worker.
  */
-public class FileSharer {
+public class FileSharer implements Closeable {
 
-    private final Map<Integer, String> availableFiles;
+    private static final int MAX_ALLOCATION_TRIES = 8;
 
-    public FileSharer() {
-        // synchronize map to be thread-safe
-        this.availableFiles = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, Share> availableFiles = new ConcurrentHashMap<>();
+    // shares whose downloads are used up, kept while an unfinished download may still resume
+    private final Map<String, Share> draining = new ConcurrentHashMap<>();
+    // "sendfile" (default): content is written to the socket channel, files with FileChannel.transferTo
+    // "stream": content is copied through a 16 KB BufferedOutputStream
+    private final boolean zeroCopy = !"stream".equalsIgnoreCase(System.getenv().getOrDefault("TRANSFER_MODE", "sendfile"));
+    private final int defaultMaxDownloads = EnvUtils.getInt("SHARE_MAX_DOWNLOADS", 0);
+    private final long defaultTtlSeconds = EnvUtils.getLong("SHARE_TTL_SECONDS", 24 * 60 * 60);
+    private final long maxTtlSeconds = EnvUtils.getLong("SHARE_MAX_TTL_SECONDS", 7 * 24 * 60 * 60);
+    // how long an interrupted download of a capped share may be resumed after its last request
+    private final long resumeWindowSeconds = Math.max(EnvUtils.getLong("SHARE_RESUME_SECONDS", 60 * 60), 1);
+    // one-second ticks, 512 slots: a turn is ~8.5 minutes, longer TTLs wait out whole turns
+    private final TimingWheel expiries = new TimingWheel("Share-Expiry", 1000, 512);
+    private final TransferListener listener;
+
+    public FileSharer() throws IOException {
+        this(EnvUtils.getBoolean("DIRECT_PEER", false)
+                ? new InetSocketAddress(System.getenv().getOrDefault("TRANSFER_BIND", "127.0.0.1"), EnvUtils.getInt("TRANSFER_PORT", 9090))
+                : null);
+    }
+
+    /**
+     * @param transferAddress where the direct-peer TransferListener listens, or null for none
+     */
+    public FileSharer(InetSocketAddress transferAddress) throws IOException {
+        this.listener = transferAddress != null ? new TransferListener(transferAddress, this::serve) : null;
+    }
+
+    /**
+     * Port of the direct-peer transfer listener, -1 if it is not running.
+     */
+    public int getTransferPort() {
+        return listener != null ? listener.getPort() : -1;
     }
 
     /**
-     * Register a file to be shared. Returns a randomly selected dynamic port (49152-65535).
-     * The caller is responsible for starting the server to actually serve the file (startFileServer).
+     * Register a file to be shared. Returns a new random invite code.
      *
      * @param filepath absolute or relative path to file to serve
-     * @return allocated port
+     * @return invite code
      * @throws IOException if unable to allocate or if file doesn't exist
      */
-    public int offerFile(String filepath) throws IOException {
+    public String offerFile(String filepath) throws IOException {
         File f = new File(filepath);
         if (!f.exists() || !f.isFile()) {
             throw new FileNotFoundException("File not found: " + filepath);
         }
+        return offerContent(new FileContent(f.getAbsoluteFile(), f.getName(), false));
+    }
 
-        // try allocate a dynamic port; simple retry loop
-        int tries = 0;
-        while (tries < 20) {
-            int port = UploadUtils.generateCode(); // returns a dynamic port number
-            if (port < 1024 || port > 65535) {
-                tries++;
-                continue;
-            }
-            // ensure port not already registered
-            synchronized (availableFiles) {
-                if (!availableFiles.containsKey(port)) {
-                    // Reserve it
-                    availableFiles.put(port, f.getAbsolutePath());
-                    System.out.println("FileSharer: registered file " + f.getAbsolutePath() + " on port " + port);
-                    return port;
+    /**
+     * Register content to be shared. Returns a new random invite code.
+     * The registration owns the content from now on and releases it when the share is removed.
+     *
+     * @param content file or in-memory content to serve
+     * @return invite code
+     * @throws IOException if unable to allocate
+     */
+    public String offerContent(SharedContent content) throws IOException {
+        return offerContent(content, defaultMaxDownloads, defaultTtlSeconds);
+    }
+
+    /**
+     * Register content that may be downloaded at most 'maxDownloads' times (0 = unlimited) and is
+     * removed after 'ttlSeconds' (0 = never), both capped at SHARE_MAX_TTL_SECONDS.
+     */
+    public String offerContent(SharedContent content, int maxDownloads, long ttlSeconds) throws IOException {
+        // "never" is capped as well
+        long ttl = maxTtlSeconds > 0 && (ttlSeconds <= 0 || ttlSeconds > maxTtlSeconds) ? maxTtlSeconds : ttlSeconds;
+        // with 50 random bits a collision is already rare; putIfAbsent makes it harmless
+        for (int tries = 0; tries < MAX_ALLOCATION_TRIES; tries++) {
+            String code = UploadUtils.generateCode();
+            Share share = new Share(code, content, maxDownloads, TimeUnit.SECONDS.toMillis(Math.max(ttl, 0)));
+            if (availableFiles.putIfAbsent(code, share) == null) {
+                if (ttl > 0) {
+                    share.setExpiry(expiries.schedule(() -> expire(share), ttl, TimeUnit.SECONDS));
                 }
+                System.out.println("FileSharer: registered " + describe(content) + " with code " + code
+                        + (maxDownloads > 0 ? " for " + maxDownloads + " downloads" : "")
+                        + (ttl > 0 ? ", expires in " + ttl + "s" : ""));
+                return code;
             }
-            tries++;
         }
-        throw new IOException("Unable to allocate a free port for file sharing after retries");
+        throw new IOException("Unable to allocate a free invite code after retries");
     }
 
     /**
-     * Start a server socket listening on the given port and serve the file registered for that port.
-     * This method will block until a client connects and the file is fully sent, or until an error occurs.
+     * Start one download of the share registered for 'code': counts it against the download cap,
+     * and pins the content. Every successful call must be paired with finishDownload.
      *
-     * Call this in a background thread (it blocks on accept()).
+     * @return the share, or null if there is none or its downloads are used up
+     */
+    public Share startDownload(String code) {
+        Share share = openDownload(code, null);
+        if (share == null) return null;
+        if (countDownload(share, false) == null) {
+            share.unpin();
+            return null;
+        }
+        return share;
+    }
+
+    /**
+     * End a download begun with startDownload.
      *
-     * @param port port allocated by offerFile
-     * @throws IOException if network error or no file registered for port
+     * @param sent     bytes written to the recipient
+     * @param complete whether the whole content was sent
      */
-    public void startFileServer(int port) throws IOException {
-        String filepath;
-        synchronized (availableFiles) {
-            filepath = availableFiles.get(port);
+    public void finishDownload(Share share, long sent, boolean complete) {
+        closeDownload(share, null, true, sent, complete);
+    }
+
+    /**
+     * Pin the share for 'code' without counting a download yet, so the caller can size the content
+     * and decide (countDownload) whether the request is a new download.
+     * A share whose downloads are used up is still found with a valid resume ticket of one of them.
+     * Every successful call must be paired with closeDownload.
+     *
+     * @param ticket resume ticket presented by the request, or null
+     * @return the share, or null if there is none
+     */
+    public Share openDownload(String code, String ticket) {
+        Share share = getShare(code);
+        if (share == null && ticket != null) {
+            String key = UploadUtils.normalizeCode(code);
+            Share exhausted = key == null ? null : draining.get(key);
+            if (exhausted != null && exhausted.hasTicket(ticket)) share = exhausted;
         }
-        if (filepath == null) {
-            throw new FileNotFoundException("No file registered for port " + port);
+        if (share == null || !share.pin()) return null;
+        return share;
+    }
+
+    /**
+     * Count a download opened with openDownload against the share's cap.
+     *
+     * @param resumable whether the recipient can come back with a resume ticket
+     * @return the download's resume ticket, "" if it gets none (unlimited share, or not resumable),
+     * or null if the downloads are used up
+     */
+    public String countDownload(Share share, boolean resumable) {
+        if (!share.countDownload()) return null;
+        String ticket = resumable && share.getMaxDownloads() > 0 ? share.issueTicket() : "";
+        if (share.isExhausted()) {
+            // the last allowed download: no new ones; the content goes once the running ones end
+            // and no resume ticket is left
+            if (availableFiles.remove(share.getCode(), share)) {
+                draining.put(share.getCode(), share);
+                releaseIfDrained(share);
+            }
         }
+        System.out.println("FileSharer: download " + share.getDownloads() + " of " + share.getCode() + " started");
+        return ticket;
+    }
 
-        File fileToSend = new File(filepath);
-        if (!fileToSend.exists() || !fileToSend.isFile()) {
-            throw new FileNotFoundException("Registered file missing: " + filepath);
+    /**
+     * End a request begun with openDownload.
+     *
+     * @param ticket   resume ticket the request was counted or resumed under, null or "" for none
+     * @param counted  whether countDownload counted the request
+     * @param sent     bytes written to the recipient
+     * @param complete whether the request sent the last byte of the content; this ends the download
+     *                 and uses up its ticket
+     */
+    public void closeDownload(Share share, String ticket, boolean counted, long sent, boolean complete) {
+        closeDownload(share, ticket, counted, sent, complete, complete);
+    }
+
+    /**
+     * End a request begun with openDownload; with endsTicket false a request that sent the last byte
+     * leaves its ticket to the other segments of a segmented download, until it has not been used
+     * for the resume window.
+     */
+    public void closeDownload(Share share, String ticket, boolean counted, long sent, boolean complete, boolean endsTicket) {
+        if (ticket != null && !ticket.isEmpty()) {
+            if (endsTicket) {
+                share.dropTicket(ticket);
+            } else if (share.hasTicket(ticket)) {
+                share.touchTicket(ticket);
+                expiries.schedule(() -> expireTicket(share, ticket), resumeWindowSeconds, TimeUnit.SECONDS);
+            }
+        }
+        share.endDownload(complete);
+        releaseIfDrained(share);
+        Metrics.add("share.bytesSent", sent);
+        if (counted) {
+            Metrics.increment(complete ? "share.downloads" : "share.failedDownloads");
+        } else if (sent > 0) {
+            Metrics.increment("share.resumedRequests");
         }
+    }
 
-        ServerSocket serverSocket = null;
+    /**
+     * Stream the content registered for 'code' to a connection that completed the handshake.
+     * Called on a TransferListener worker; the listener closes the channel afterwards.
+     */
+    private void serve(String handshake, SocketChannel channel) throws IOException {
+        Share share = startDownload(handshake);
+        if (share == null) {
+            System.err.println("FileSharer: no share available for code '" + handshake + "'");
+            return;
+        }
+
+        SharedContent shared = share.getContent();
+        SharedContent content = shared.snapshot();
+        System.out.println("FileSharer: client connected from " + channel.getRemoteAddress() + " - sending file " + content.getName());
+        long sent = 0;
+        boolean complete = false;
         try {
-            serverSocket = new ServerSocket();
-            // bind to loopback to avoid exposing outside unintentionally; if you need external access, bind to 0.0.0.0
-            serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
-            System.out.println("FileSharer: listening on 127.0.0.1:" + port + " for file " + fileToSend.getName());
-
-            try (Socket client = serverSocket.accept()) {
-                System.out.println("FileSharer: client connected from " + client.getRemoteSocketAddress() + " - sending file " + fileToSend.getName());
-                // Stream file bytes to client
-                try (BufferedInputStream fis = new BufferedInputStream(new FileInputStream(fileToSend));
-                     BufferedOutputStream out = new BufferedOutputStream(client.getOutputStream())) {
-
-                    byte[] buffer = new byte[16 * 1024];
-                    int read;
-                    while ((read = fis.read(buffer)) != -1) {
-                        out.write(buffer, 0, read);
-                    }
-                    out.flush();
-                    System.out.println("FileSharer: file '" + fileToSend.getName() + "' sent to " + client.getRemoteSocketAddress());
-                } catch (IOException e) {
-                    System.err.println("FileSharer: error sending file: " + e.getMessage());
-                    throw e;
-                } finally {
-                    // After serving once, remove registration so port can be reused later
-                    synchronized (availableFiles) {
-                        availableFiles.remove(port);
-                    }
-                }
+            if (content instanceof FileContent && !((FileContent) content).getFile().isFile()) {
+                throw new FileNotFoundException("Registered file missing: " + describe(content));
             }
-
-        } finally {
-            if (serverSocket != null) {
-                try { serverSocket.close(); } catch (IOException ignore) {}
+            if (zeroCopy) {
+                // files (also tar entries) go out with sendfile where the platform has it;
+                // zip bundles are generated straight into the socket through their own buffer
+                sent = content.transferTo(channel);
+            } else {
+                BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 16 * 1024);
+                sent = content.writeTo(out);
+                out.flush();
             }
+            complete = true;
+            System.out.println("FileSharer: file '" + content.getName() + "' sent to " + channel.getRemoteAddress());
+        } catch (IOException e) {
+            System.err.println("FileSharer: error sending file: " + e.getMessage());
+            throw e;
+        } finally {
+            if (content != shared) content.release();
+            finishDownload(share, sent, complete);
         }
     }
 
     /**
-     * Return the registered file path for a previously offered port.
-     * Returns null if no file is registered for the port.
+     * Called on the expiry wheel when a share's TTL is over.
      */
-    public String getRegisteredFilePath(int port) {
-        synchronized (availableFiles) {
-            return availableFiles.get(port);
+    private void expire(Share share) {
+        if (availableFiles.remove(share.getCode(), share) | draining.remove(share.getCode(), share)) {
+            share.remove();
+            Metrics.increment("share.expired");
+            System.out.println("FileSharer: share " + share.getCode() + " expired after " + share.getDownloads() + " downloads");
         }
     }
 
     /**
-     * Utility: optionally let callers check if a port is registered.
+     * Called on the expiry wheel once a resume ticket may have gone unused for the resume window.
+     */
+    private void expireTicket(Share share, String ticket) {
+        long lastUsed = share.ticketLastUsed(ticket);
+        if (lastUsed == 0) return;
+        long idle = System.currentTimeMillis() - lastUsed;
+        if (idle < TimeUnit.SECONDS.toMillis(resumeWindowSeconds)) {
+            expiries.schedule(() -> expireTicket(share, ticket), resumeWindowSeconds - idle / 1000, TimeUnit.SECONDS);
+            return;
+        }
+        share.dropTicket(ticket);
+        releaseIfDrained(share);
+    }
+
+    /**
+     * Remove a share whose downloads are used up once no resume ticket is left.
+     */
+    private void releaseIfDrained(Share share) {
+        if (!share.hasTickets() && draining.remove(share.getCode(), share)) {
+            share.remove();
+        }
+    }
+
+    /**
+     * TTL used when an upload does not ask for one, in seconds (0 = never).
+     */
+    public long getDefaultTtlSeconds() {
+        return defaultTtlSeconds;
+    }
+
+    /**
+     * Default download cap (0 = unlimited).
+     */
+    public int getDefaultMaxDownloads() {
+        return defaultMaxDownloads;
+    }
+
+    /**
+     * Unregister a share. Its content is released once running downloads have finished.
+     *
+     * @return false if no share was registered for the code
+     */
+    public boolean remove(String code) {
+        String key = UploadUtils.normalizeCode(code);
+        Share share = key == null ? null : availableFiles.remove(key);
+        if (share == null && key != null) share = draining.remove(key);
+        if (share == null) return false;
+        share.remove();
+        System.out.println("FileSharer: removed share " + key + " after " + share.getDownloads() + " downloads");
+        return true;
+    }
+
+    /**
+     * Return the registered file path for a previously offered code.
+     * Returns null if no file is registered for the code.
      */
-    public boolean isRegistered(int port) {
-        synchronized (availableFiles) {
-            return availableFiles.containsKey(port);
+    public String getRegisteredFilePath(String code) {
+        SharedContent content = getRegisteredContent(code);
+        return (content instanceof FileContent) ? ((FileContent) content).getFile().getAbsolutePath() : null;
+    }
+
+    /**
+     * Return the content registered for a code (in any spelling normalizeCode accepts), or null.
+     */
+    public SharedContent getRegisteredContent(String code) {
+        Share share = getShare(code);
+        return share == null ? null : share.getContent();
+    }
+
+    /**
+     * Return the registration for a code, or null.
+     */
+    public Share getShare(String code) {
+        String key = UploadUtils.normalizeCode(code);
+        return key == null ? null : availableFiles.get(key);
+    }
+
+    /**
+     * Utility: optionally let callers check if a code is registered.
+     */
+    public boolean isRegistered(String code) {
+        return getRegisteredContent(code) != null;
+    }
+
+    private static String describe(SharedContent content) {
+        if (content instanceof FileContent) {
+            return "file " + ((FileContent) content).getFile().getAbsolutePath();
+        }
+        if (content instanceof BundleContent) {
+            return "bundle '" + content.getName() + "' (" + ((BundleContent) content).getEntries().size() + " files)";
         }
+        return "in-memory content '" + content.getName() + "' (" + content.size() + " bytes)";
+    }
+
+    @Override
+    public void close() throws IOException {
+        expiries.close();
+        if (listener != null) listener.close();
     }
 }
@@ -0,0 +1,62 @@
+package p2p.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MemoryContent - shared content held in a (pooled) heap buffer; small uploads never touch disk.
+ * The buffer's [position, limit) is the content. onRelease hands the buffer back to its owner.
+ */
+public class MemoryContent implements SharedContent {
+
+    private final String name;
+    private final ByteBuffer data;
+    private final Runnable onRelease;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public MemoryContent(String name, ByteBuffer data, Runnable onRelease) {
+        this.name = name;
+        this.data = data;
+        this.onRelease = onRelease;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long size() {
+        return data.remaining();
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    @Override
+    public long writeTo(OutputStream out) throws IOException {
+        out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        return data.remaining();
+    }
+
+    @Override
+    public long writeRange(OutputStream out, long offset, long length) throws IOException {
+        if (offset + length > data.remaining()) throw new EOFException("Range ends after the content");
+        out.write(data.array(), data.arrayOffset() + data.position() + (int) offset, (int) length);
+        return length;
+    }
+
+    @Override
+    public void release() {
+        if (released.compareAndSet(false, true) && onRelease != null) {
+            onRelease.run();
+        }
+    }
+}
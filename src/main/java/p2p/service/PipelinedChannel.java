@@ -0,0 +1,223 @@
+package p2p.service;
+
+import p2p.utils.BufferPool;
+import p2p.utils.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PipelinedChannel - decouples the thread that reads an upload from the disk writes.
+ *
+ * The caller (reader stage: socket read + boundary scan) copies bytes into pooled buffers and
+ * hands full buffers to a writer stage that drains them into the target channel on its own
+ * thread. At most 'depth' buffers are in flight: when all of them are waiting for the disk the
+ * reader blocks (backpressure), and when none are queued the writer waits for the network.
+ * Both kinds of waiting are recorded as stall time (see /metrics):
+ * - upload.pipeline.readerStallNanos: reader waited for a free buffer (disk is the bottleneck)
+ * - upload.pipeline.writerStallNanos: writer waited for data (network is the bottleneck)
+ *
+ * close() flushes the last buffer and waits for the writer; it does not close the target.
+ */
+public class PipelinedChannel implements WritableByteChannel {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 256, false);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final AtomicInteger writerThreads = new AtomicInteger();
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Upload-Writer-" + writerThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final WritableByteChannel target;
+    private final int depth;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private int allocated;
+    private ByteBuffer filling;
+    private volatile IOException failure;
+    private volatile boolean aborted;
+    private boolean closed;
+
+    private long bytes;
+    private long readerStallNanos;
+    private long writerStallNanos; // owned by the writer thread until writerDone
+
+    public PipelinedChannel(WritableByteChannel target, int depth) {
+        this.target = target;
+        this.depth = Math.max(depth, 2);
+        this.free = new ArrayBlockingQueue<>(this.depth);
+        this.full = new ArrayBlockingQueue<>(this.depth + 1); // + END marker
+        WRITERS.execute(this::drain);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        checkFailure();
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            if (filling == null) filling = takeFreeBuffer();
+            if (src.remaining() <= filling.remaining()) {
+                filling.put(src);
+            } else {
+                int chunk = Math.min(src.remaining(), filling.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + chunk);
+                filling.put(slice);
+                src.position(src.position() + chunk);
+            }
+            if (!filling.hasRemaining()) handOff();
+        }
+        bytes += n;
+        return n;
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        ByteBuffer buf = free.poll();
+        if (buf != null) return buf;
+        if (allocated < depth) {
+            allocated++;
+            return BUFFERS.acquire();
+        }
+        long start = System.nanoTime();
+        try {
+            while (buf == null) {
+                checkFailure();
+                buf = free.poll(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload writer");
+        } finally {
+            readerStallNanos += System.nanoTime() - start;
+        }
+        return buf;
+    }
+
+    private void handOff() throws IOException {
+        filling.flip();
+        put(filling);
+        filling = null;
+    }
+
+    private void put(ByteBuffer buf) throws IOException {
+        try {
+            full.put(buf); // never blocks for long: at most depth buffers + END exist
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing upload data");
+        }
+    }
+
+    /**
+     * Writer stage: drain queued buffers into the target until END.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer buf = full.poll();
+                if (buf == null) {
+                    long start = System.nanoTime();
+                    buf = full.take();
+                    writerStallNanos += System.nanoTime() - start;
+                }
+                if (buf == END) break;
+                if (failure == null && !aborted) {
+                    try {
+                        while (buf.hasRemaining()) {
+                            target.write(buf);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                buf.clear();
+                free.offer(buf);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Upload writer interrupted");
+        } finally {
+            writerDone.countDown();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("Upload write failed: " + e.getMessage(), e);
+    }
+
+    public long getReaderStallNanos() {
+        return readerStallNanos;
+    }
+
+    public long getWriterStallNanos() {
+        return writerStallNanos;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Flush pending data and wait until the writer stage has written everything.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (filling != null && filling.position() > 0) handOff();
+            finish();
+        } finally {
+            closed = true;
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop without writing what is still queued (used when the upload fails).
+     */
+    public void abort() {
+        if (closed) return;
+        closed = true;
+        aborted = true;
+        try {
+            finish();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void finish() throws IOException {
+        put(END);
+        try {
+            writerDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload writer");
+        } finally {
+            if (filling != null) BUFFERS.release(filling);
+            filling = null;
+            ByteBuffer buf;
+            while ((buf = free.poll()) != null) BUFFERS.release(buf);
+            Metrics.add("upload.pipeline.bytes", bytes);
+            Metrics.increment("upload.pipeline.parts");
+            Metrics.add("upload.pipeline.readerStallNanos", readerStallNanos);
+            Metrics.add("upload.pipeline.writerStallNanos", writerStallNanos);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package p2p.service;
+
+import p2p.utils.TimingWheel;
+import p2p.utils.UploadUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Share - one registration in FileSharer: the content, its download counters and its lifetime.
+ *
+ * Any number of downloads may run at once; with maxDownloads > 0 only that many are started.
+ * Readers pin the share while they use the content, and the content is released once the share
+ * has been removed and the last pin is gone. Downloads send a snapshot of the content, so an
+ * append to a bundle neither waits for them nor changes what they are sending.
+ * A share may expire: FileSharer schedules its removal on a TimingWheel at getExpiresAt().
+ *
+ * Only the uploader is given the share's append token; the invite code alone lets a recipient
+ * download but not add to a bundle.
+ *
+ * A counted download of a capped share can be given a resume ticket. Later requests that present
+ * the ticket continue that download without counting again, also after the cap has been reached,
+ * until one of them has sent the last byte.
+ */
+public class Share {
+
+    private final String code;
+    private final SharedContent content;
+    private final int maxDownloads;
+    private final long createdAt = System.currentTimeMillis();
+    private final long expiresAt;
+    private final String appendToken = UploadUtils.generateToken();
+    private volatile TimingWheel.Timeout expiry;
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger pins = new AtomicInteger();
+    private final Map<String, Long> tickets = new ConcurrentHashMap<>(); // resume ticket -> last used (epoch millis)
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean removed;
+
+    Share(String code, SharedContent content, int maxDownloads, long ttlMillis) {
+        this.code = code;
+        this.content = content;
+        this.maxDownloads = Math.max(maxDownloads, 0);
+        this.expiresAt = ttlMillis > 0 ? createdAt + ttlMillis : 0;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public SharedContent getContent() {
+        return content;
+    }
+
+    /**
+     * Download cap, 0 if unlimited.
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    /**
+     * Downloads started so far.
+     */
+    public int getDownloads() {
+        return started.get();
+    }
+
+    /**
+     * Downloads that sent the whole content.
+     */
+    public long getCompletedDownloads() {
+        return completed.get();
+    }
+
+    /**
+     * The secret the uploader presents to append to this share; never shown to recipients.
+     */
+    public String getAppendToken() {
+        return appendToken;
+    }
+
+    /**
+     * Whether 'token' is this share's append token.
+     */
+    public boolean isAppendToken(String token) {
+        return token != null && MessageDigest.isEqual(appendToken.getBytes(StandardCharsets.US_ASCII),
+                token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * When the share is removed (epoch millis), 0 if it does not expire.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    void setExpiry(TimingWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * Keep the content from being released until unpin().
+     *
+     * @return false if the share has been removed; do not use the content then
+     */
+    public boolean pin() {
+        pins.incrementAndGet();
+        if (removed) {
+            unpin();
+            return false;
+        }
+        return true;
+    }
+
+    public void unpin() {
+        if (pins.decrementAndGet() == 0 && removed) releaseContent();
+    }
+
+    /**
+     * Count one download against maxDownloads.
+     *
+     * @return false if the downloads are used up
+     */
+    boolean countDownload() {
+        int n;
+        do {
+            n = started.get();
+            if (maxDownloads > 0 && n >= maxDownloads) return false;
+        } while (!started.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * @return true if this download used up the last one allowed
+     */
+    boolean isExhausted() {
+        return maxDownloads > 0 && started.get() >= maxDownloads;
+    }
+
+    /**
+     * @param complete whether the last byte of the content has now been sent to the recipient
+     */
+    void endDownload(boolean complete) {
+        if (complete) completed.incrementAndGet();
+        unpin();
+    }
+
+    String issueTicket() {
+        String ticket = UploadUtils.generateCode();
+        tickets.put(ticket, System.currentTimeMillis());
+        return ticket;
+    }
+
+    /**
+     * Whether 'ticket' continues an unfinished download of this share.
+     */
+    public boolean hasTicket(String ticket) {
+        return ticket != null && tickets.containsKey(ticket);
+    }
+
+    boolean hasTickets() {
+        return !tickets.isEmpty();
+    }
+
+    /**
+     * When the ticket was last used, 0 if it is not (or no longer) valid.
+     */
+    long ticketLastUsed(String ticket) {
+        return tickets.getOrDefault(ticket, 0L);
+    }
+
+    void touchTicket(String ticket) {
+        tickets.replace(ticket, System.currentTimeMillis());
+    }
+
+    void dropTicket(String ticket) {
+        tickets.remove(ticket);
+    }
+
+    /**
+     * Mark the share removed; the content is released now or when the last reader unpins.
+     */
+    void remove() {
+        removed = true;
+        TimingWheel.Timeout t = expiry;
+        if (t != null) t.cancel();
+        if (pins.get() == 0) releaseContent();
+    }
+
+    private void releaseContent() {
+        if (released.compareAndSet(false, true)) {
+            content.release();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * SharedContent - the bytes behind a share: a file on disk, an in-memory buffer, or a bundle
+ * generated while it is downloaded.
+ */
+public interface SharedContent {
+
+    /**
+     * Name offered to the downloader.
+     */
+    String getName();
+
+    /**
+     * Size in bytes, or -1 if unknown.
+     */
+    long size();
+
+    /**
+     * Open a new stream over the content. Each call starts at byte 0.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Write the whole content to 'out' (not closed). Content that is generated on the fly
+     * overrides this to write straight into the destination.
+     *
+     * @return number of bytes written
+     */
+    default long writeTo(OutputStream out) throws IOException {
+        try (InputStream in = openStream()) {
+            return in.transferTo(out);
+        }
+    }
+
+    /**
+     * Write the whole content to a channel (not closed). File-backed content overrides this to let
+     * the kernel move the bytes (FileChannel.transferTo).
+     *
+     * @return number of bytes written
+     */
+    default long transferTo(WritableByteChannel target) throws IOException {
+        OutputStream out = Channels.newOutputStream(target);
+        long n = writeTo(out);
+        out.flush();
+        return n;
+    }
+
+    /**
+     * Write 'length' bytes starting at 'offset' to 'out' (not closed), e.g. for an HTTP range request.
+     * This default reads from a new stream and skips to the offset; file-backed content reads at the
+     * position instead.
+     *
+     * @throws EOFException if the content ends before offset + length
+     */
+    default long writeRange(OutputStream out, long offset, long length) throws IOException {
+        try (InputStream in = openStream()) {
+            in.skipNBytes(offset);
+            byte[] buf = new byte[(int) Math.min(64 * 1024, Math.max(length, 1))];
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) throw new EOFException("Content ended " + left + " bytes before the end of the range");
+                out.write(buf, 0, n);
+                left -= n;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * The content as it is now, for one download to size and send: appends to a bundle do not
+     * change a snapshot. Content that cannot change returns itself; if another object is returned,
+     * the caller releases it when the download is over.
+     */
+    default SharedContent snapshot() {
+        return this;
+    }
+
+    /**
+     * Called once the share is gone; frees whatever storage the content owns.
+     */
+    void release();
+}
@@ -0,0 +1,221 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * TarBundleContent - a multi-file share served as an uncompressed POSIX (ustar/pax) TAR archive.
+ *
+ * TAR needs no CRCs and no directory at the end, so the archive is just a 512-byte header per
+ * entry followed by the entry's bytes, copied from the source with transferTo. That makes it
+ * the cheapest bundle format for data that is compressed already. Since every header has a fixed
+ * size, the archive size is known up front. Names longer than 100 bytes and entries of 8 GB or
+ * more get a pax extended header.
+ */
+public class TarBundleContent extends BundleContent {
+
+    private static final int BLOCK = 512;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final byte[] ZEROS = new byte[2 * BLOCK]; // padding and end-of-archive marker
+
+    private final long mtime;
+
+    public TarBundleContent(String name, List<SharedContent> entries) {
+        this(name, entries, System.currentTimeMillis() / 1000);
+    }
+
+    private TarBundleContent(String name, List<SharedContent> entries, long mtime) {
+        super(name, entries);
+        this.mtime = mtime;
+    }
+
+    /**
+     * Same modification time in every header, so snapshots taken for range requests produce the
+     * same bytes.
+     */
+    @Override
+    protected BundleContent withEntries(List<SharedContent> entries) {
+        return new TarBundleContent(getName(), entries, mtime);
+    }
+
+    @Override
+    public long size() {
+        long total = 2 * BLOCK; // end-of-archive marker
+        for (SharedContent entry : entries) {
+            long size = entry.size();
+            if (size < 0) return -1;
+            byte[] pax = paxRecords(entry.getName(), size);
+            if (pax != null) total += BLOCK + padded(pax.length);
+            total += BLOCK + padded(size);
+        }
+        return total;
+    }
+
+    @Override
+    public long writeTo(OutputStream out) throws IOException {
+        return transferTo(Channels.newChannel(out));
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long total = 0;
+        for (SharedContent entry : entries) {
+            long size = entry.size();
+            if (size < 0) throw new IOException("Size of '" + entry.getName() + "' unknown");
+            byte[] pax = paxRecords(entry.getName(), size);
+            if (pax != null) {
+                total += writeFully(target, header("PaxHeaders/" + truncate(entry.getName()), pax.length, 'x'));
+                total += writeFully(target, ByteBuffer.wrap(pax));
+                total += pad(target, pax.length);
+            }
+            total += writeFully(target, header(entry.getName(), size, '0'));
+            long n = entry.transferTo(target);
+            if (n != size) {
+                throw new IOException("Entry '" + entry.getName() + "' changed while bundling (" + n + " of " + size + " bytes)");
+            }
+            total += n + pad(target, n);
+        }
+        total += writeFully(target, ByteBuffer.allocate(2 * BLOCK));
+        return total;
+    }
+
+    /**
+     * The archive's layout is fixed by the entry sizes, so a range is cut straight from the headers,
+     * the entries' own ranges and the padding it overlaps, without generating what comes before it.
+     */
+    @Override
+    public long writeRange(OutputStream out, long offset, long length) throws IOException {
+        long end = offset + length;
+        long pos = 0; // archive offset of the part at hand
+        for (SharedContent entry : entries) {
+            if (pos >= end) return length;
+            long size = entry.size();
+            if (size < 0) throw new IOException("Size of '" + entry.getName() + "' unknown");
+            byte[] pax = paxRecords(entry.getName(), size);
+            long entryLength = (pax != null ? BLOCK + padded(pax.length) : 0) + BLOCK + padded(size);
+            if (pos + entryLength <= offset) {
+                pos += entryLength;
+                continue;
+            }
+            if (pax != null) {
+                pos = writeSlice(out, header("PaxHeaders/" + truncate(entry.getName()), pax.length, 'x').array(), BLOCK, pos, offset, end);
+                pos = writeSlice(out, pax, pax.length, pos, offset, end);
+                pos = writeSlice(out, ZEROS, (int) (padded(pax.length) - pax.length), pos, offset, end);
+            }
+            pos = writeSlice(out, header(entry.getName(), size, '0').array(), BLOCK, pos, offset, end);
+            long from = Math.max(offset, pos);
+            long to = Math.min(end, pos + size);
+            if (from < to) {
+                long n = entry.writeRange(out, from - pos, to - from);
+                if (n != to - from) {
+                    throw new IOException("Entry '" + entry.getName() + "' changed while bundling (" + n + " of " + (to - from) + " bytes)");
+                }
+            }
+            pos += size;
+            pos = writeSlice(out, ZEROS, (int) (padded(size) - size), pos, offset, end);
+        }
+        writeSlice(out, ZEROS, 2 * BLOCK, pos, offset, end);
+        return length;
+    }
+
+    /**
+     * Write the part of part[0, partLength), which starts at archive offset 'pos', that lies within
+     * [from, to).
+     *
+     * @return archive offset after the part
+     */
+    private static long writeSlice(OutputStream out, byte[] part, int partLength, long pos, long from, long to) throws IOException {
+        long start = Math.max(from, pos);
+        long stop = Math.min(to, pos + partLength);
+        if (start < stop) out.write(part, (int) (start - pos), (int) (stop - start));
+        return pos + partLength;
+    }
+
+    /**
+     * pax "path" / "size" records for values that do not fit a ustar header, or null.
+     */
+    private static byte[] paxRecords(String name, long size) {
+        StringBuilder sb = new StringBuilder();
+        if (name.getBytes(StandardCharsets.UTF_8).length > 100) sb.append(paxRecord("path", name));
+        if (size > MAX_USTAR_SIZE) sb.append(paxRecord("size", Long.toString(size)));
+        return sb.length() == 0 ? null : sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * "<length> <key>=<value>\n" where length counts the whole record, including itself.
+     */
+    private static String paxRecord(String key, String value) {
+        int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = body + Integer.toString(body).length();
+        if (Integer.toString(length).length() != Integer.toString(body).length()) length++;
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private ByteBuffer header(String name, long size, char type) {
+        byte[] h = new byte[BLOCK];
+        byte[] nameBytes = truncate(name).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, h, 0, Math.min(nameBytes.length, 100));
+        octal(h, 100, 8, 0644);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        octal(h, 124, 12, Math.min(size, MAX_USTAR_SIZE));
+        octal(h, 136, 12, mtime);
+        h[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, h, 257, 6);
+        h[263] = '0';
+        h[264] = '0';
+        // checksum: sum of all header bytes with the checksum field counted as spaces
+        for (int i = 148; i < 156; i++) h[i] = ' ';
+        long sum = 0;
+        for (byte b : h) sum += b & 0xFF;
+        octal(h, 148, 7, sum);
+        return ByteBuffer.wrap(h);
+    }
+
+    /**
+     * Name as it fits the 100-byte ustar field (the full name goes into a pax record).
+     */
+    private static String truncate(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 100) return name;
+        // keep the end (extension) and stay on a character boundary
+        String tail = name;
+        while (tail.getBytes(StandardCharsets.UTF_8).length > 100) tail = tail.substring(1);
+        return tail;
+    }
+
+    /**
+     * Zero-padded octal number of width - 1 digits followed by NUL.
+     */
+    private static void octal(byte[] h, int off, int width, long value) {
+        String s = Long.toOctalString(value);
+        int digits = width - 1;
+        for (int i = 0; i < digits; i++) {
+            int from = i - (digits - s.length());
+            h[off + i] = (byte) (from < 0 ? '0' : s.charAt(from));
+        }
+        h[off + digits] = 0;
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    private static long pad(WritableByteChannel target, long size) throws IOException {
+        int padding = (int) (padded(size) - size);
+        return padding == 0 ? 0 : writeFully(target, ByteBuffer.allocate(padding));
+    }
+
+    private static long writeFully(WritableByteChannel target, ByteBuffer buf) throws IOException {
+        long n = buf.remaining();
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,198 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TransferListener - the direct-peer port: one port from which all shares can be fetched over raw TCP
+ * (enabled with DIRECT_PEER=true; the HTTP download endpoint does not go through it).
+ *
+ * A single selector thread accepts connections and reads the handshake without blocking: the
+ * client sends the share's invite code followed by '\n'. Connections that send no complete
+ * handshake within HANDSHAKE_TIMEOUT_MS are dropped. Once the code is known the connection is
+ * switched to blocking mode and handed to a worker thread that streams the content, so waiting
+ * shares cost neither a thread nor a port; only transfers in progress occupy a worker.
+ */
+public class TransferListener implements Closeable {
+
+    static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+    private static final int MAX_HANDSHAKE = 128;
+
+    /**
+     * Receives connections whose handshake completed.
+     */
+    interface Handler {
+        void serve(String code, SocketChannel channel) throws IOException;
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Handler handler;
+    private final Thread selectorThread;
+    private final AtomicInteger workerThreads = new AtomicInteger();
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Transfer-" + workerThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed;
+
+    TransferListener(InetSocketAddress address, Handler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::run, "Transfer-Listener");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        System.out.println("TransferListener: listening on " + server.getLocalAddress());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private static final class Handshake {
+        final ByteBuffer buf = ByteBuffer.allocate(MAX_HANDSHAKE);
+        final long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+    }
+
+    private void run() {
+        List<SocketChannel> ready = new ArrayList<>();
+        List<String> codes = new ArrayList<>();
+        try {
+            while (!closed) {
+                selector.select(1000);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            String code = readHandshake(key);
+                            if (code != null) {
+                                key.cancel();
+                                ready.add((SocketChannel) key.channel());
+                                codes.add(code);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key);
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    // flush the cancelled keys so the channels may be switched back to blocking mode
+                    selector.selectNow();
+                    for (int i = 0; i < ready.size(); i++) {
+                        handOff(ready.get(i), codes.get(i));
+                    }
+                    ready.clear();
+                    codes.clear();
+                }
+                expireHandshakes();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) System.err.println("TransferListener: selector failed: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ, new Handshake());
+        }
+    }
+
+    /**
+     * @return the code once the handshake line is complete, otherwise null
+     */
+    private String readHandshake(SelectionKey key) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Handshake hs = (Handshake) key.attachment();
+        if (ch.read(hs.buf) < 0) {
+            closeQuietly(key);
+            return null;
+        }
+        int end = -1;
+        for (int i = 0; i < hs.buf.position(); i++) {
+            if (hs.buf.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (!hs.buf.hasRemaining()) closeQuietly(key); // no newline within MAX_HANDSHAKE bytes
+            return null;
+        }
+        return new String(hs.buf.array(), 0, end, StandardCharsets.US_ASCII).trim();
+    }
+
+    private void handOff(SocketChannel ch, String code) {
+        try {
+            ch.configureBlocking(true);
+        } catch (IOException e) {
+            try { ch.close(); } catch (IOException ignore) {}
+            return;
+        }
+        workers.execute(() -> {
+            try (ch) {
+                handler.serve(code, ch);
+            } catch (IOException e) {
+                System.err.println("TransferListener: transfer for " + code + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void expireHandshakes() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Handshake && ((Handshake) key.attachment()).deadline < now) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        selector.close();
+        server.close();
+        workers.shutdownNow();
+    }
+}
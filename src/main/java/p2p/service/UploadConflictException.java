@@ -0,0 +1,23 @@
+package p2p.service;
+
+import java.io.IOException;
+
+/**
+ * UploadConflictException - a resumable upload request does not fit the session's state
+ * (wrong offset, session busy, incomplete, ...). Carries the committed offset for the reply.
+ */
+public class UploadConflictException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    public UploadConflictException(String message, long offset) {
+        super(message);
+        this.offset = offset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,164 @@
+package p2p.service;
+
+import p2p.utils.TimingWheel;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * UploadSession - state of one resumable upload: where its bytes go and how many are committed.
+ *
+ * Sequential sessions (chunkSize 0) only ever grow by appends at the committed offset, so after a
+ * restart the committed offset is simply the file's length. Parallel sessions split the file into
+ * fixed-size chunks that may arrive in any order over separate requests; the file is allocated
+ * up front and a bitmap records which chunks are complete.
+ */
+public class UploadSession {
+
+    private final String id;
+    private final String filename;
+    private final long length;
+    private final File dataFile;
+    private final File metaFile;
+    private final long chunkSize; // 0 = sequential session
+    private final String expectedDigest; // hex SHA-256 announced by the client, or null
+    private final BitSet receivedChunks; // parallel sessions only
+    private final BitSet chunksInFlight = new BitSet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long offset;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile TimingWheel.Timeout expiry;
+    // SHA-256 of bytes [0, offset) while every byte went through this process; null after a restart
+    private MessageDigest runningDigest;
+
+    UploadSession(String id, String filename, long length, File dataFile, File metaFile, long offset, MessageDigest runningDigest,
+                  long chunkSize, String expectedDigest, BitSet receivedChunks) {
+        this.id = id;
+        this.filename = filename;
+        this.length = length;
+        this.dataFile = dataFile;
+        this.metaFile = metaFile;
+        this.offset = offset;
+        this.runningDigest = runningDigest;
+        this.chunkSize = chunkSize;
+        this.expectedDigest = expectedDigest;
+        this.receivedChunks = receivedChunks;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Total size announced when the session was opened.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Number of bytes received and written so far.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isComplete() {
+        if (isParallel()) {
+            synchronized (this) {
+                return receivedChunks.cardinality() == getChunkCount();
+            }
+        }
+        return offset == length;
+    }
+
+    public boolean isParallel() {
+        return chunkSize > 0;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return isParallel() ? (int) ((length + chunkSize - 1) / chunkSize) : 0;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * Indexes of the chunks that have not arrived yet (parallel sessions).
+     */
+    public synchronized int[] getMissingChunks() {
+        int count = getChunkCount();
+        int[] out = new int[count - receivedChunks.cardinality()];
+        int j = 0;
+        for (int i = receivedChunks.nextClearBit(0); i < count; i = receivedChunks.nextClearBit(i + 1)) {
+            out[j++] = i;
+        }
+        return out;
+    }
+
+    BitSet getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    BitSet getChunksInFlight() {
+        return chunksInFlight;
+    }
+
+    File getDataFile() {
+        return dataFile;
+    }
+
+    File getMetaFile() {
+        return metaFile;
+    }
+
+    ReentrantLock getLock() {
+        return lock;
+    }
+
+    void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    MessageDigest getRunningDigest() {
+        return runningDigest;
+    }
+
+    void setRunningDigest(MessageDigest runningDigest) {
+        this.runningDigest = runningDigest;
+    }
+
+    /**
+     * When bytes were last written to the session (epoch millis).
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    TimingWheel.Timeout getExpiry() {
+        return expiry;
+    }
+
+    void setExpiry(TimingWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+}
@@ -0,0 +1,422 @@
+package p2p.service;
+
+import p2p.utils.EnvUtils;
+import p2p.utils.Metrics;
+import p2p.utils.TimingWheel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UploadSessionManager - resumable uploads.
+ *
+ * A client opens a session with the total length, then sends the bytes in any number of
+ * requests, each starting at the committed offset. Whatever reaches the disk before a connection
+ * drops stays committed, so the client only resends the rest. Once complete, the session is
+ * finalized into a BlobStore blob and can be offered as a share.
+ *
+ * A session opened with a chunk size is a parallel session: the file is split into fixed-size
+ * chunks that the client may send concurrently over separate connections, in any order. Each
+ * chunk is written at its own position (FileChannel.write(buffer, position)) into a file that was
+ * sized up front, and a bitmap records the completed chunks. The last chunk to arrive seals the
+ * session.
+ *
+ * Sessions live in a directory of their own (<id>.part data, <id>.properties metadata) and are
+ * reloaded on startup, so an interrupted upload can also be resumed after a server restart.
+ *
+ * A session that receives no bytes for UPLOAD_SESSION_TTL_SECONDS (default 86400, 0 = keep forever)
+ * is abandoned: a TimingWheel checks it once the timeout could have passed and deletes its files,
+ * or looks again later if bytes arrived in the meantime.
+ */
+public class UploadSessionManager implements Closeable {
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final File dir;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final long idleTimeoutMillis;
+    private final TimingWheel expiries;
+
+    public UploadSessionManager(File dir) {
+        this(dir, TimeUnit.SECONDS.toMillis(EnvUtils.getLong("UPLOAD_SESSION_TTL_SECONDS", 24 * 60 * 60)));
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a session may go without receiving bytes, 0 for no limit
+     */
+    public UploadSessionManager(File dir, long idleTimeoutMillis) {
+        this.dir = dir;
+        this.idleTimeoutMillis = Math.max(idleTimeoutMillis, 0);
+        // one-second ticks (finer for short timeouts), 512 slots as for share expiry
+        this.expiries = this.idleTimeoutMillis > 0
+                ? new TimingWheel("Upload-Session-Expiry", Math.min(1000, Math.max(this.idleTimeoutMillis / 4, 10)), 512)
+                : null;
+        dir.mkdirs();
+        recover();
+    }
+
+    /**
+     * Open a new sequential session for a file of the given total length.
+     */
+    public UploadSession create(String filename, long length) throws IOException {
+        return create(filename, length, 0, null);
+    }
+
+    /**
+     * Open a new session.
+     *
+     * @param chunkSize      > 0 for a parallel session, 0 for a sequential one
+     * @param expectedDigest hex SHA-256 the finished file must have, or null
+     */
+    public UploadSession create(String filename, long length, long chunkSize, String expectedDigest) throws IOException {
+        if (length < 0) throw new IllegalArgumentException("length must be >= 0");
+        if (chunkSize < 0) throw new IllegalArgumentException("chunk size must be >= 0");
+        if (chunkSize > 0 && (length + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("chunk size too small for this length");
+        }
+        if (expectedDigest != null && !BlobStore.isDigest(expectedDigest)) {
+            throw new IllegalArgumentException("digest must be 64 hex characters");
+        }
+        String id = UUID.randomUUID().toString();
+        File data = new File(dir, id + ".part");
+        File meta = new File(dir, id + ".properties");
+        if (!data.createNewFile()) throw new IOException("Session file already exists: " + data);
+
+        UploadSession s;
+        if (chunkSize > 0) {
+            // chunks land anywhere in the file, so give it its final size now
+            try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+                raf.setLength(length);
+            }
+            s = new UploadSession(id, filename, length, data, meta, 0, null, chunkSize, expectedDigest, new BitSet());
+        } else {
+            s = new UploadSession(id, filename, length, data, meta, 0, newDigest(), 0, expectedDigest, null);
+        }
+        writeMeta(s);
+        sessions.put(id, s);
+        scheduleExpiry(s, idleTimeoutMillis);
+        System.out.println("UploadSessionManager: opened " + (chunkSize > 0 ? "parallel" : "sequential") + " session " + id
+                + " for '" + filename + "' (" + length + " bytes" + (chunkSize > 0 ? ", " + s.getChunkCount() + " chunks" : "") + ")");
+        return s;
+    }
+
+    public UploadSession get(String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    /**
+     * Append a request body at 'offset', which must equal the committed offset. Bytes are
+     * committed as they are written; if the body breaks off, the bytes received so far stay.
+     *
+     * @return the new committed offset
+     * @throws UploadConflictException if the offset does not match or another request is writing
+     */
+    public long append(UploadSession s, long offset, InputStream body) throws IOException {
+        if (s.isParallel()) {
+            writeChunk(s, offset, body);
+            return s.getOffset();
+        }
+        if (!s.getLock().tryLock()) {
+            throw new UploadConflictException("Another request is writing to this session", s.getOffset());
+        }
+        s.touch();
+        try {
+            if (offset != s.getOffset()) {
+                throw new UploadConflictException("Upload-Offset " + offset + " does not match committed offset", s.getOffset());
+            }
+            MessageDigest digest = s.getRunningDigest();
+            byte[] buf = new byte[COPY_BUFFER];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            try (FileChannel ch = FileChannel.open(s.getDataFile().toPath(), StandardOpenOption.WRITE)) {
+                long pos = offset;
+                int n;
+                while (pos < s.getLength() && (n = body.read(buf, 0, (int) Math.min(buf.length, s.getLength() - pos))) != -1) {
+                    bb.clear().limit(n);
+                    while (bb.hasRemaining()) {
+                        pos += ch.write(bb, pos);
+                    }
+                    if (digest != null) digest.update(buf, 0, n);
+                    s.setOffset(pos);
+                }
+                if (pos == s.getLength() && body.read() != -1) {
+                    throw new UploadConflictException("Body extends past Upload-Length", pos);
+                }
+            }
+            return s.getOffset();
+        } finally {
+            s.touch();
+            s.getLock().unlock();
+        }
+    }
+
+    /**
+     * Write one chunk of a parallel session. 'offset' must be the start of a chunk that has not
+     * been received yet, and the body must be exactly that chunk. Chunks are written concurrently
+     * with positional writes; the chunk only counts as received (and is recorded in the metadata)
+     * once all of its bytes are on disk, so a broken-off chunk is simply sent again.
+     *
+     * @return true if this was the last missing chunk
+     * @throws UploadConflictException if the offset is not a missing chunk or the body has the wrong size
+     */
+    public boolean writeChunk(UploadSession s, long offset, InputStream body) throws IOException {
+        long chunkSize = s.getChunkSize();
+        if (offset < 0 || offset >= s.getLength() || offset % chunkSize != 0) {
+            throw new UploadConflictException("Upload-Offset " + offset + " is not the start of a chunk", s.getOffset());
+        }
+        int index = (int) (offset / chunkSize);
+        long end = Math.min(offset + chunkSize, s.getLength());
+        synchronized (s) {
+            if (s.getReceivedChunks().get(index)) {
+                throw new UploadConflictException("Chunk " + index + " already received", s.getOffset());
+            }
+            if (s.getChunksInFlight().get(index)) {
+                throw new UploadConflictException("Chunk " + index + " is being written by another request", s.getOffset());
+            }
+            s.getChunksInFlight().set(index);
+        }
+        s.touch();
+        try {
+            byte[] buf = new byte[COPY_BUFFER];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            try (FileChannel ch = FileChannel.open(s.getDataFile().toPath(), StandardOpenOption.WRITE)) {
+                long pos = offset;
+                int n;
+                while (pos < end && (n = body.read(buf, 0, (int) Math.min(buf.length, end - pos))) != -1) {
+                    bb.clear().limit(n);
+                    while (bb.hasRemaining()) {
+                        pos += ch.write(bb, pos);
+                    }
+                }
+                if (pos < end) {
+                    throw new UploadConflictException("Chunk " + index + " ended after " + (pos - offset) + " of " + (end - offset) + " bytes", s.getOffset());
+                }
+                if (body.read() != -1) {
+                    throw new UploadConflictException("Body extends past chunk " + index, s.getOffset());
+                }
+            }
+            synchronized (s) {
+                if (sessions.get(s.getId()) != s) {
+                    throw new UploadConflictException("Session was aborted", s.getOffset());
+                }
+                s.getReceivedChunks().set(index);
+                s.setOffset(contiguousOffset(s));
+                writeMeta(s);
+                // only the request that set the last bit reports completion
+                return s.isComplete();
+            }
+        } finally {
+            s.touch();
+            synchronized (s) {
+                s.getChunksInFlight().clear(index);
+            }
+        }
+    }
+
+    /**
+     * Turn a complete session into a blob reference and forget the session.
+     */
+    public BlobContent finish(UploadSession s, BlobStore store, String servedName) throws IOException {
+        if (!s.getLock().tryLock()) {
+            throw new UploadConflictException("Another request is writing to this session", s.getOffset());
+        }
+        try {
+            if (sessions.get(s.getId()) != s) {
+                throw new UploadConflictException("Session already finished", s.getOffset());
+            }
+            if (!s.isComplete()) {
+                throw new UploadConflictException("Upload incomplete: " + s.getOffset() + " of " + s.getLength() + " bytes", s.getOffset());
+            }
+            MessageDigest digest = s.getRunningDigest();
+            if (digest == null) {
+                // resumed after a restart, or chunks arrived out of order: hash the data once now
+                digest = newDigest();
+                try (InputStream in = new FileInputStream(s.getDataFile())) {
+                    byte[] buf = new byte[COPY_BUFFER];
+                    int n;
+                    while ((n = in.read(buf)) != -1) digest.update(buf, 0, n);
+                }
+            }
+            String hex = HexFormat.of().formatHex(digest.digest());
+            if (s.getExpectedDigest() != null && !s.getExpectedDigest().equalsIgnoreCase(hex)) {
+                // some chunk was corrupted on the way; we cannot tell which, so start over
+                reset(s);
+                throw new UploadConflictException("Digest mismatch: expected " + s.getExpectedDigest() + ", got " + hex, 0);
+            }
+            BlobContent content = store.commit(s.getDataFile(), hex, servedName);
+            sessions.remove(s.getId());
+            cancelExpiry(s);
+            s.getMetaFile().delete();
+            return content;
+        } finally {
+            s.getLock().unlock();
+        }
+    }
+
+    /**
+     * Abandon a session and delete its data.
+     */
+    public void abort(UploadSession s) {
+        synchronized (s) {
+            sessions.remove(s.getId());
+            cancelExpiry(s);
+            s.getDataFile().delete();
+            s.getMetaFile().delete();
+        }
+    }
+
+    /**
+     * Stop the expiry thread; sessions stay on disk and are picked up by the next manager.
+     */
+    @Override
+    public void close() {
+        if (expiries != null) expiries.close();
+    }
+
+    private void scheduleExpiry(UploadSession s, long delayMillis) {
+        if (expiries == null) return;
+        s.setExpiry(expiries.schedule(() -> expireIfIdle(s), delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private static void cancelExpiry(UploadSession s) {
+        TimingWheel.Timeout t = s.getExpiry();
+        if (t != null) t.cancel();
+    }
+
+    /**
+     * Called on the expiry wheel: abandon the session if it has been idle for the whole timeout,
+     * otherwise check again when it could be. A request that is writing keeps the session alive.
+     */
+    private void expireIfIdle(UploadSession s) {
+        if (sessions.get(s.getId()) != s) return;
+        long idle = System.currentTimeMillis() - s.getLastActivity();
+        if (idle < idleTimeoutMillis) {
+            scheduleExpiry(s, idleTimeoutMillis - idle);
+            return;
+        }
+        // finish() and sequential appends hold the lock, parallel chunks are marked in flight
+        if (!s.getLock().tryLock()) {
+            scheduleExpiry(s, idleTimeoutMillis);
+            return;
+        }
+        try {
+            synchronized (s) {
+                if (!s.getChunksInFlight().isEmpty()) {
+                    scheduleExpiry(s, idleTimeoutMillis);
+                    return;
+                }
+                abort(s);
+            }
+        } finally {
+            s.getLock().unlock();
+        }
+        Metrics.increment("uploadSessions.expired");
+        System.out.println("UploadSessionManager: dropped session " + s.getId() + " after " + idle / 1000 + "s without data ("
+                + s.getOffset() + "/" + s.getLength() + " bytes received)");
+    }
+
+    private void reset(UploadSession s) throws IOException {
+        synchronized (s) {
+            if (s.isParallel()) {
+                s.getReceivedChunks().clear();
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(s.getDataFile(), "rw")) {
+                    raf.setLength(0);
+                }
+                s.setRunningDigest(newDigest());
+            }
+            s.setOffset(0);
+            writeMeta(s);
+        }
+    }
+
+    /**
+     * End of the run of complete chunks at the start of the file.
+     */
+    private static long contiguousOffset(UploadSession s) {
+        int firstMissing = s.getReceivedChunks().nextClearBit(0);
+        return Math.min((long) firstMissing * s.getChunkSize(), s.getLength());
+    }
+
+    /**
+     * Persist the session metadata (write a temp file, then rename over the old one).
+     */
+    private void writeMeta(UploadSession s) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("filename", s.getFilename());
+        p.setProperty("length", Long.toString(s.getLength()));
+        if (s.getExpectedDigest() != null) p.setProperty("digest", s.getExpectedDigest());
+        if (s.isParallel()) {
+            p.setProperty("chunkSize", Long.toString(s.getChunkSize()));
+            p.setProperty("chunks", Base64.getEncoder().encodeToString(s.getReceivedChunks().toByteArray()));
+        }
+        File tmp = new File(dir, s.getId() + ".properties.tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "resumable upload session");
+        }
+        Files.move(tmp.toPath(), s.getMetaFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void recover() {
+        File[] metas = dir.listFiles((d, name) -> name.endsWith(".properties"));
+        if (metas == null) return;
+        for (File meta : metas) {
+            String id = meta.getName().substring(0, meta.getName().length() - ".properties".length());
+            File data = new File(dir, id + ".part");
+            try (InputStream in = new FileInputStream(meta)) {
+                Properties p = new Properties();
+                p.load(in);
+                long length = Long.parseLong(p.getProperty("length"));
+                long chunkSize = Long.parseLong(p.getProperty("chunkSize", "0"));
+                String digest = p.getProperty("digest");
+                if (!data.isFile() || data.length() > length) throw new IOException("data file missing or too long");
+                UploadSession s;
+                if (chunkSize > 0) {
+                    BitSet chunks = BitSet.valueOf(Base64.getDecoder().decode(p.getProperty("chunks", "")));
+                    s = new UploadSession(id, p.getProperty("filename"), length, data, meta, 0, null, chunkSize, digest, chunks);
+                    s.setOffset(contiguousOffset(s));
+                } else {
+                    s = new UploadSession(id, p.getProperty("filename"), length, data, meta, data.length(), null, 0, digest, null);
+                }
+                // the files were last written when the session last received bytes
+                s.setLastActivity(Math.max(meta.lastModified(), data.lastModified()));
+                sessions.put(id, s);
+                scheduleExpiry(s, idleTimeoutMillis - (System.currentTimeMillis() - s.getLastActivity()));
+                System.out.println("UploadSessionManager: recovered session " + id + " at offset " + s.getOffset() + "/" + length
+                        + (s.isParallel() ? " (" + s.getMissingChunks().length + " chunks missing)" : ""));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("UploadSessionManager: dropping unreadable session " + id + ": " + e.getMessage());
+                data.delete();
+                meta.delete();
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package p2p.service;
+
+import p2p.utils.BufferPool;
+import p2p.utils.EnvUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UploadSpool - destination for one uploaded part.
+ *
+ * Bytes are kept in a pooled memory buffer until the part grows past UPLOAD_MEMORY_THRESHOLD
+ * (default 64 KB); only then is the target file created and everything written to it through a
+ * FileChannel. A small part therefore becomes a MemoryContent and never touches the filesystem.
+ * The total memory held by spooled parts (including shares still waiting to be downloaded) is
+ * capped by UPLOAD_MEMORY_BUDGET (default 64 MB); beyond that, parts go straight to disk.
+ *
+ * Everything written is hashed with SHA-256 on the way through, so a spilled part can be
+ * committed to the BlobStore under its digest without reading it back.
+ */
+public class UploadSpool implements WritableByteChannel {
+
+    private static final int MEMORY_THRESHOLD = (int) EnvUtils.getLong("UPLOAD_MEMORY_THRESHOLD", 64 * 1024);
+    private static final long MEMORY_BUDGET = EnvUtils.getLong("UPLOAD_MEMORY_BUDGET", 64L * 1024 * 1024);
+    private static final BufferPool MEMORY_POOL = new BufferPool(Math.max(MEMORY_THRESHOLD, 1), 256, false);
+    private static final AtomicLong memoryInUse = new AtomicLong();
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private final File target;
+    private final long sizeHint;
+    private final MessageDigest sha256;
+    private String digest;
+    private ByteBuffer memory;
+    private boolean triedMemory;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param target   file to create if the part spills to disk
+     * @param sizeHint exact size of the part if known (a raw upload's Content-Length), else -1
+     */
+    public UploadSpool(File target, long sizeHint) {
+        this.target = target;
+        this.sizeHint = sizeHint;
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        int n = src.remaining();
+        int start = src.position();
+        sha256.update(src);
+        src.position(start);
+        if (channel == null) {
+            if (!triedMemory) {
+                triedMemory = true;
+                memory = acquireMemory();
+            }
+            if (memory != null && n <= memory.remaining()) {
+                memory.put(src);
+                written += n;
+                return n;
+            }
+            spill();
+        }
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        written += n;
+        return n;
+    }
+
+    /**
+     * Copy a whole request body into the spool. Bodies that are known to fit under the threshold
+     * are read into memory; anything else goes to the file with FileChannel.transferFrom.
+     *
+     * @param expected body length if known, else -1
+     * @return number of bytes copied
+     */
+    public long transferFrom(ReadableByteChannel src, long expected) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (channel == null && expected >= 0 && expected <= MEMORY_THRESHOLD) {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            long total = 0;
+            while (src.read(buf) != -1) {
+                buf.flip();
+                total += buf.remaining();
+                write(buf);
+                buf.clear();
+            }
+            return total;
+        }
+        if (channel == null) spill();
+        ReadableByteChannel hashing = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int start = dst.position();
+                int n = src.read(dst);
+                if (n > 0) {
+                    ByteBuffer read = dst.duplicate();
+                    read.position(start).limit(start + n);
+                    sha256.update(read);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return src.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                src.close();
+            }
+        };
+        long total = 0;
+        while (true) {
+            long n = channel.transferFrom(hashing, written, TRANSFER_CHUNK);
+            if (n <= 0) break; // end of the body
+            written += n;
+            total += n;
+        }
+        return total;
+    }
+
+    private void spill() throws IOException {
+        raf = new RandomAccessFile(target, "rw");
+        channel = raf.getChannel();
+        // sets the final length up front so the file is not grown write by write; most
+        // filesystems only create a sparse file here, no blocks are reserved
+        if (sizeHint > 0) raf.setLength(sizeHint);
+        if (memory != null) {
+            memory.flip();
+            while (memory.hasRemaining()) {
+                channel.write(memory);
+            }
+            releaseMemory(memory);
+            memory = null;
+        }
+    }
+
+    /**
+     * Parts up to this many bytes are kept in memory.
+     */
+    public static int getMemoryThreshold() {
+        return MEMORY_THRESHOLD;
+    }
+
+    /**
+     * Lower-case hex SHA-256 of everything written (available after close()).
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public boolean isInMemory() {
+        return channel == null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        digest = HexFormat.of().formatHex(sha256.digest());
+        if (channel != null) {
+            try {
+                channel.truncate(written);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Hand the spooled bytes over as shared content (call after close()).
+     * A spilled file is committed to the blob store (deduplicated by digest), or becomes an owned
+     * FileContent when store is null. The content owns the memory buffer or file from then on.
+     */
+    public SharedContent toContent(String name, BlobStore store) throws IOException {
+        if (channel != null) {
+            if (store == null) return new FileContent(target, name, true);
+            return store.commit(target, digest, name);
+        }
+        ByteBuffer data = memory != null ? memory : ByteBuffer.allocate(0);
+        memory = null;
+        data.flip();
+        return new MemoryContent(name, data, () -> releaseMemory(data));
+    }
+
+    /**
+     * Drop whatever was spooled (used when the upload fails).
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+        if (memory != null) {
+            releaseMemory(memory);
+            memory = null;
+        }
+        if (channel != null && target.exists()) target.delete();
+    }
+
+    private static ByteBuffer acquireMemory() {
+        if (MEMORY_THRESHOLD <= 0) return null;
+        if (memoryInUse.addAndGet(MEMORY_THRESHOLD) > MEMORY_BUDGET) {
+            memoryInUse.addAndGet(-MEMORY_THRESHOLD);
+            return null;
+        }
+        return MEMORY_POOL.acquire();
+    }
+
+    private static void releaseMemory(ByteBuffer buf) {
+        if (buf.capacity() == 0) return;
+        memoryInUse.addAndGet(-MEMORY_THRESHOLD);
+        MEMORY_POOL.release(buf);
+    }
+}
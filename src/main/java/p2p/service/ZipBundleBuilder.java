@@ -0,0 +1,108 @@
+package p2p.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * ZipBundleBuilder - builds a bundle ZIP file while an upload is still arriving.
+ *
+ * Each part is handed over as soon as it has been received; it is compressed in the background
+ * while the next part is read from the network and appended to the file in upload order. When
+ * the upload ends only the central directory is left to write, so the finished bundle is
+ * available almost as soon as the last byte arrives.
+ */
+public class ZipBundleBuilder {
+
+    private final File target;
+    private final OutputStream out;
+    private final ZipBundleWriter writer;
+    private int count;
+
+    public ZipBundleBuilder(File target, File tempDir) throws IOException {
+        this.target = target;
+        this.out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+        this.writer = new ZipBundleWriter(out, tempDir);
+    }
+
+    /**
+     * Append a received part. The part must stay readable until finish() returns.
+     */
+    public void add(SharedContent part) throws IOException {
+        writer.add(part);
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Complete the archive and return it as owned content, named after the file.
+     */
+    public ZipBundleFile finish() throws IOException {
+        try {
+            writer.finish();
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        return new ZipBundleFile(target, target.getName());
+    }
+
+    /**
+     * Drop the partial archive.
+     */
+    public void abort() {
+        writer.abort();
+        try {
+            out.close();
+        } catch (IOException ignore) {
+        }
+        target.delete();
+    }
+
+    /**
+     * Write a copy of a finished bundle file with entries added. The existing entries are copied up
+     * to the old central directory with FileChannel.transferTo (copy_file_range, or a reflink, where
+     * the filesystem supports it) and are neither read nor recompressed; the new entries and a
+     * directory covering all of them follow. 'zip' is not modified, so downloads reading it are
+     * unaffected. If anything fails, 'target' is deleted.
+     *
+     * @return number of entries in the new archive
+     */
+    public static int appendTo(File zip, File target, List<SharedContent> parts, File tempDir) throws IOException {
+        ZipIndex index = ZipIndex.of(zip);
+        long cdOffset = index.getCentralDirectoryOffset();
+        try (FileChannel src = FileChannel.open(zip.toPath(), StandardOpenOption.READ);
+             FileChannel ch = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < cdOffset) {
+                long n = src.transferTo(copied, cdOffset - copied, ch);
+                if (n <= 0) throw new IOException("Truncated zip file");
+                copied += n;
+            }
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024);
+            ZipBundleWriter writer = new ZipBundleWriter(out, tempDir, index);
+            try {
+                writer.writeAll(parts);
+                writer.finish();
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            target.delete();
+            throw e;
+        }
+        return index.getEntries().size() + parts.size();
+    }
+}
@@ -0,0 +1,48 @@
+package p2p.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * ZipBundleContent - a multi-file share served as one ZIP archive.
+ *
+ * The archive is produced while the downloader reads it, so no bundle file is ever written and
+ * the invite code is available as soon as the parts are stored. The size is therefore unknown
+ * (-1) until the archive has been built. Entries are compressed in parallel by ZipBundleWriter.
+ */
+public class ZipBundleContent extends BundleContent {
+
+    private final File tempDir;
+
+    /**
+     * @param entries the bundled parts, in archive order; owned by the bundle from now on
+     * @param tempDir where compressed entries too large for memory are staged while writing
+     */
+    public ZipBundleContent(String name, List<SharedContent> entries, File tempDir) {
+        super(name, entries);
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    protected BundleContent withEntries(List<SharedContent> entries) {
+        return new ZipBundleContent(getName(), entries, tempDir);
+    }
+
+    @Override
+    public long size() {
+        return -1;
+    }
+
+    @Override
+    public long writeTo(OutputStream out) throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(out, 64 * 1024);
+        ZipBundleWriter writer = new ZipBundleWriter(bos, tempDir);
+        writer.writeAll(entries);
+        writer.finish();
+        bos.flush();
+        return writer.getBytesWritten();
+    }
+}
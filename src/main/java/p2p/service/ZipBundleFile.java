@@ -0,0 +1,131 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ZipBundleFile - a bundle zip that the server built on disk (ZipBundleBuilder) and owns.
+ *
+ * Only these archives may have uploads appended to them. An uploaded .zip is a plain FileContent
+ * (usually a BlobContent whose file is shared with every upload of the same bytes under its
+ * digest), so it is never rewritten.
+ *
+ * An append never modifies a file that a download may be reading: ZipBundleBuilder.appendTo writes
+ * a new file (the old entries copied up to the central directory, then the new ones), which becomes
+ * the current generation. Downloads work on a snapshot of one generation; a generation's file is
+ * deleted once it is no longer current and its last snapshot has been released. So appends never
+ * wait for downloads and downloads never wait for appends.
+ */
+public class ZipBundleFile extends FileContent {
+
+    /**
+     * One version of the archive on disk, deleted when its last reference is gone.
+     */
+    private static final class Generation {
+        final File file;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Generation(File file) {
+            this.file = file;
+        }
+
+        boolean retain() {
+            int n;
+            do {
+                n = refs.get();
+                if (n == 0) return false;
+            } while (!refs.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0 && file.exists() && !file.delete()) {
+                System.err.println("ZipBundleFile: could not delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * A download's view of one generation.
+     */
+    private static final class Snapshot extends FileContent {
+        private final Generation generation;
+
+        Snapshot(Generation generation, String name) {
+            super(generation.file, name, false);
+            this.generation = generation;
+        }
+
+        @Override
+        public void release() {
+            generation.release();
+        }
+    }
+
+    private final String stem; // file name without ".zip", for the files of later generations
+    private final Object appendLock = new Object();
+    private volatile Generation current;
+    private boolean released;
+
+    public ZipBundleFile(File file, String name) {
+        super(file, name, true);
+        String fileName = file.getName();
+        this.stem = fileName.endsWith(".zip") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        this.current = new Generation(file);
+    }
+
+    /**
+     * The file of the current generation.
+     */
+    @Override
+    public File getFile() {
+        return current.file;
+    }
+
+    @Override
+    public SharedContent snapshot() {
+        while (true) {
+            Generation g = current;
+            if (g.retain()) return new Snapshot(g, getName());
+            // an append replaced it meanwhile, unless the bundle has been released
+            if (g == current) return new FileContent(g.file, getName(), false);
+        }
+    }
+
+    /**
+     * Add entries; one append runs at a time.
+     *
+     * @return number of entries in the archive afterwards
+     * @throws IOException if writing failed or the bundle has been released (the archive is unchanged)
+     */
+    public int append(List<SharedContent> parts, File tempDir) throws IOException {
+        synchronized (appendLock) {
+            Generation old = current;
+            File next = new File(old.file.getParentFile(), stem + "-" + UUID.randomUUID() + ".zip");
+            int count = ZipBundleBuilder.appendTo(old.file, next, parts, tempDir);
+            synchronized (this) {
+                if (released) {
+                    next.delete();
+                    throw new IOException("Bundle " + getName() + " has been released");
+                }
+                current = new Generation(next);
+            }
+            old.release();
+            return count;
+        }
+    }
+
+    @Override
+    public void release() {
+        Generation g;
+        synchronized (this) {
+            if (released) return;
+            released = true;
+            g = current;
+        }
+        g.release();
+    }
+}
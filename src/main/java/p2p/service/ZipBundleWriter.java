@@ -0,0 +1,540 @@
+package p2p.service;
+
+import p2p.utils.EnvUtils;
+import p2p.utils.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ZipBundleWriter - writes a ZIP archive whose entries are compressed in parallel.
+ *
+ * Each entry is deflated on a bounded worker pool (BUNDLE_THREADS, default one per core) into a
+ * temporary segment: in memory while small, otherwise a file in the temp directory. The writer
+ * then stitches the segments together in order. Because an entry is fully compressed before its
+ * local header is written, CRC and sizes are known up front and no data descriptors are needed.
+ * At most 2 * BUNDLE_THREADS entries are compressed ahead of the writer, which bounds the
+ * temporary space. Archives with more than 65535 entries or more than 4 GB use ZIP64 records.
+ *
+ * A single entry of BUNDLE_BLOCK_THRESHOLD bytes or more (default 32 MB) would still keep one core
+ * busy for its whole length, so it is deflated block-parallel by BlockDeflater instead, in blocks
+ * of BUNDLE_BLOCK_SIZE (default 1 MB) on a separate pool.
+ *
+ * Entries that would not shrink (see CompressionPolicy) are STORED: the worker only computes their
+ * CRC, and the writer copies them straight from their source without a temporary segment.
+ * Per-method counts and byte totals are exported as bundle.* metrics.
+ */
+public class ZipBundleWriter {
+
+    private static final int THREADS = Math.max(1, EnvUtils.getInt("BUNDLE_THREADS", Runtime.getRuntime().availableProcessors()));
+    private static final int COPY_BUFFER = 64 * 1024;
+    // compressed segments up to this size stay in memory
+    private static final int MEMORY_SEGMENT_LIMIT = 1024 * 1024;
+    private static final int BLOCK_SIZE = Math.max(64 * 1024, EnvUtils.getInt("BUNDLE_BLOCK_SIZE", 1024 * 1024));
+    private static final long BLOCK_THRESHOLD = EnvUtils.getLong("BUNDLE_BLOCK_THRESHOLD", 32L * 1024 * 1024);
+    private static final AtomicInteger compressorThreads = new AtomicInteger();
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "Bundle-Deflate-" + compressorThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    // one large entry at a time is split into blocks (that alone keeps every core busy and bounds
+    // block memory); other large entries meanwhile compress the ordinary way
+    private static final Semaphore BLOCK_MODE = new Semaphore(1);
+    // block tasks never wait on other tasks, so entry tasks can safely wait on this pool
+    private static final AtomicInteger blockThreads = new AtomicInteger();
+    private static final ExecutorService BLOCK_COMPRESSORS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "Bundle-Block-" + blockThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final OutputStream out;
+    private final File tempDir;
+    private final List<Entry> written = new ArrayList<>();
+    private final Deque<CompressJob> pending = new ArrayDeque<>();
+    private final byte[] header = new byte[512];
+    private long offset;
+
+    /**
+     * @param out     destination; not closed
+     * @param tempDir directory for segments that do not fit in memory
+     */
+    public ZipBundleWriter(OutputStream out, File tempDir) {
+        this.out = out;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Continue an existing archive: 'out' is positioned at the old central directory, which the
+     * new entries overwrite; finish() then writes a directory covering old and new entries.
+     */
+    public ZipBundleWriter(OutputStream out, File tempDir, ZipIndex existing) {
+        this(out, tempDir);
+        for (ZipIndex.Entry old : existing.getEntries()) {
+            Entry e = new Entry();
+            e.name = old.getName().getBytes(StandardCharsets.UTF_8);
+            e.method = old.getMethod();
+            e.crc = old.getCrc();
+            e.size = old.getSize();
+            e.compressedSize = old.getCompressedSize();
+            e.offset = old.getLocalHeaderOffset();
+            e.dosTime = old.getDosTime();
+            written.add(e);
+        }
+        this.offset = existing.getCentralDirectoryOffset();
+    }
+
+    /**
+     * Compress all entries in parallel and write them in order.
+     */
+    public void writeAll(List<SharedContent> contents) throws IOException {
+        try {
+            for (SharedContent content : contents) {
+                add(content);
+            }
+            while (!pending.isEmpty()) writeNext();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Queue one entry. It is compressed in the background; entries whose compression has
+     * finished are written out in order as later ones are added, and the caller only blocks when
+     * too many entries are waiting.
+     */
+    public void add(SharedContent content) throws IOException {
+        CompressJob job = new CompressJob(content);
+        job.future = COMPRESSORS.submit(job);
+        pending.add(job);
+        while (!pending.isEmpty() && (pending.size() > 2 * THREADS || pending.peek().future.isDone())) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Segment segment = await(pending.poll().future);
+        try {
+            writeEntry(segment);
+        } finally {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Give up: drop whatever was queued or compressed ahead. The output is incomplete.
+     */
+    public void abort() {
+        CompressJob job;
+        while ((job = pending.poll()) != null) {
+            // a job that has not started never runs; a running one deletes its own segment
+            job.future.cancel(false);
+            Segment done = job.abandon();
+            if (done != null) done.delete();
+        }
+    }
+
+    /**
+     * Write any queued entries, then the central directory and end records. The archive is
+     * complete afterwards.
+     */
+    public void finish() throws IOException {
+        try {
+            while (!pending.isEmpty()) writeNext();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        long cdStart = offset;
+        for (Entry e : written) {
+            writeCentralHeader(e);
+        }
+        long cdSize = offset - cdStart;
+        boolean zip64 = written.size() >= 0xFFFF || cdStart >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT;
+        int h = 0;
+        if (zip64) {
+            long recordStart = offset;
+            h = putInt(header, h, 0x06064b50); // zip64 end of central directory record
+            h = putLong(header, h, 44);
+            h = putShort(header, h, 45);
+            h = putShort(header, h, 45);
+            h = putInt(header, h, 0);
+            h = putInt(header, h, 0);
+            h = putLong(header, h, written.size());
+            h = putLong(header, h, written.size());
+            h = putLong(header, h, cdSize);
+            h = putLong(header, h, cdStart);
+            h = putInt(header, h, 0x07064b50); // zip64 end of central directory locator
+            h = putInt(header, h, 0);
+            h = putLong(header, h, recordStart);
+            h = putInt(header, h, 1);
+        }
+        h = putInt(header, h, 0x06054b50);
+        h = putShort(header, h, 0);
+        h = putShort(header, h, 0);
+        h = putShort(header, h, Math.min(written.size(), 0xFFFF));
+        h = putShort(header, h, Math.min(written.size(), 0xFFFF));
+        h = putInt(header, h, (int) Math.min(cdSize, ZIP64_LIMIT));
+        h = putInt(header, h, (int) Math.min(cdStart, ZIP64_LIMIT));
+        h = putShort(header, h, 0);
+        write(header, 0, h);
+        out.flush();
+    }
+
+    /**
+     * Bytes written so far.
+     */
+    public long getBytesWritten() {
+        return offset;
+    }
+
+    private Segment compress(SharedContent content) throws IOException {
+        if (CompressionPolicy.chooseMethod(content) == METHOD_STORED) return checksum(content);
+        if (content.size() >= BLOCK_THRESHOLD && BLOCK_MODE.tryAcquire()) {
+            try {
+                return compressBlocks(content);
+            } finally {
+                BLOCK_MODE.release();
+            }
+        }
+        Segment segment = new Segment(content.getName(), METHOD_DEFLATED);
+        Deflater deflater = new Deflater(CompressionPolicy.LEVEL, true);
+        try (InputStream in = content.openStream();
+             DeflaterOutputStream dos = new DeflaterOutputStream(segment.open(), deflater, COPY_BUFFER)) {
+            byte[] buf = new byte[COPY_BUFFER];
+            CRC32 crc = new CRC32();
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                dos.write(buf, 0, n);
+                segment.size += n;
+            }
+            dos.finish();
+            segment.crc = crc.getValue();
+        } catch (IOException | RuntimeException e) {
+            segment.delete();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        return segment;
+    }
+
+    /**
+     * A STORED entry: only the CRC is computed ahead; the data is copied from the source later.
+     */
+    private Segment checksum(SharedContent content) throws IOException {
+        Segment segment = new Segment(content.getName(), METHOD_STORED);
+        CRC32 crc = new CRC32();
+        try (InputStream in = content.openStream()) {
+            byte[] buf = new byte[COPY_BUFFER];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                segment.size += n;
+            }
+        }
+        segment.crc = crc.getValue();
+        segment.source = content;
+        return segment;
+    }
+
+    private Segment compressBlocks(SharedContent content) throws IOException {
+        Segment segment = new Segment(content.getName(), METHOD_DEFLATED);
+        BlockDeflater deflater = new BlockDeflater(BLOCK_COMPRESSORS, BLOCK_SIZE, 2 * THREADS, CompressionPolicy.LEVEL);
+        try (InputStream in = content.openStream(); OutputStream out = segment.open()) {
+            deflater.deflate(in, out);
+        } catch (IOException | RuntimeException e) {
+            segment.delete();
+            throw e;
+        }
+        segment.crc = deflater.getCrc();
+        segment.size = deflater.getSize();
+        return segment;
+    }
+
+    private void writeEntry(Segment segment) throws IOException {
+        Entry e = new Entry();
+        e.name = segment.name.getBytes(StandardCharsets.UTF_8);
+        e.method = segment.method;
+        e.crc = segment.crc;
+        e.size = segment.size;
+        e.compressedSize = segment.compressedSize();
+        e.offset = offset;
+        e.dosTime = dosTime(LocalDateTime.now());
+        boolean zip64 = e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT;
+
+        int h = 0;
+        h = putInt(header, h, 0x04034b50);
+        h = putShort(header, h, zip64 ? 45 : 20);
+        h = putShort(header, h, FLAG_UTF8);
+        h = putShort(header, h, e.method);
+        h = putInt(header, h, (int) e.dosTime);
+        h = putInt(header, h, (int) e.crc);
+        h = putInt(header, h, (int) (zip64 ? ZIP64_LIMIT : e.compressedSize));
+        h = putInt(header, h, (int) (zip64 ? ZIP64_LIMIT : e.size));
+        h = putShort(header, h, e.name.length);
+        h = putShort(header, h, zip64 ? 20 : 0);
+        write(header, 0, h);
+        write(e.name, 0, e.name.length);
+        if (zip64) {
+            h = 0;
+            h = putShort(header, h, 0x0001);
+            h = putShort(header, h, 16);
+            h = putLong(header, h, e.size);
+            h = putLong(header, h, e.compressedSize);
+            write(header, 0, h);
+        }
+        long copied = segment.copyTo(out);
+        if (copied != e.compressedSize) {
+            throw new IOException("Entry '" + segment.name + "' changed while bundling (" + copied + " of " + e.compressedSize + " bytes)");
+        }
+        offset += copied;
+        written.add(e);
+        if (e.method == METHOD_STORED) {
+            Metrics.increment("bundle.storedEntries");
+            Metrics.add("bundle.storedBytes", e.size);
+        } else {
+            Metrics.increment("bundle.deflatedEntries");
+            Metrics.add("bundle.deflatedBytes", e.size);
+            Metrics.add("bundle.deflateBytesSaved", e.size - e.compressedSize);
+        }
+    }
+
+    private void writeCentralHeader(Entry e) throws IOException {
+        boolean sizes64 = e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT;
+        boolean offset64 = e.offset >= ZIP64_LIMIT;
+        int extra = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+        int h = 0;
+        h = putInt(header, h, 0x02014b50);
+        h = putShort(header, h, 45);
+        h = putShort(header, h, extra > 0 ? 45 : 20);
+        h = putShort(header, h, FLAG_UTF8);
+        h = putShort(header, h, e.method);
+        h = putInt(header, h, (int) e.dosTime);
+        h = putInt(header, h, (int) e.crc);
+        h = putInt(header, h, (int) (sizes64 ? ZIP64_LIMIT : e.compressedSize));
+        h = putInt(header, h, (int) (sizes64 ? ZIP64_LIMIT : e.size));
+        h = putShort(header, h, e.name.length);
+        h = putShort(header, h, extra > 0 ? extra + 4 : 0);
+        h = putShort(header, h, 0); // comment
+        h = putShort(header, h, 0); // disk
+        h = putShort(header, h, 0); // internal attributes
+        h = putInt(header, h, 0); // external attributes
+        h = putInt(header, h, (int) (offset64 ? ZIP64_LIMIT : e.offset));
+        write(header, 0, h);
+        write(e.name, 0, e.name.length);
+        if (extra > 0) {
+            h = 0;
+            h = putShort(header, h, 0x0001);
+            h = putShort(header, h, extra);
+            if (sizes64) {
+                h = putLong(header, h, e.size);
+                h = putLong(header, h, e.compressedSize);
+            }
+            if (offset64) h = putLong(header, h, e.offset);
+            write(header, 0, h);
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    /**
+     * One queued entry. Once abandoned by abort(), the segment it produces is deleted: by the job
+     * itself if it is still running, else by abandon()'s caller.
+     */
+    private final class CompressJob implements Callable<Segment> {
+        private final SharedContent content;
+        private Future<Segment> future;
+        private Segment result;
+        private boolean abandoned;
+
+        CompressJob(SharedContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public Segment call() throws IOException {
+            synchronized (this) {
+                if (abandoned) return null;
+            }
+            Segment segment = compress(content);
+            synchronized (this) {
+                if (abandoned) {
+                    segment.delete();
+                    return null;
+                }
+                result = segment;
+                return segment;
+            }
+        }
+
+        /**
+         * @return the segment if the job had already finished, for the caller to delete
+         */
+        synchronized Segment abandon() {
+            abandoned = true;
+            Segment s = result;
+            result = null;
+            return s;
+        }
+    }
+
+    private static Segment await(Future<Segment> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing bundle");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Compressing bundle entry failed", e.getCause());
+        }
+    }
+
+    static long dosTime(LocalDateTime t) {
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return ((long) (t.getYear() - 1980) << 25) | ((long) t.getMonthValue() << 21) | ((long) t.getDayOfMonth() << 16)
+                | ((long) t.getHour() << 11) | ((long) t.getMinute() << 5) | (t.getSecond() >> 1);
+    }
+
+    static int putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        return off + 2;
+    }
+
+    static int putInt(byte[] b, int off, int v) {
+        putShort(b, off, v);
+        putShort(b, off + 2, v >>> 16);
+        return off + 4;
+    }
+
+    static int putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) v);
+        putInt(b, off + 4, (int) (v >>> 32));
+        return off + 8;
+    }
+
+    /**
+     * One central directory record.
+     */
+    private static final class Entry {
+        byte[] name;
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        long dosTime;
+    }
+
+    /**
+     * Compressed data of one entry, buffered in memory until it grows past MEMORY_SEGMENT_LIMIT
+     * and then moved to a temp file. A STORED entry has no data of its own, only its source.
+     */
+    final class Segment {
+        final String name;
+        final int method;
+        long crc;
+        long size;
+        SharedContent source;
+        private ByteArrayOutputStream memory;
+        private File file;
+        private long fileBytes;
+
+        Segment(String name, int method) {
+            this.name = name;
+            this.method = method;
+        }
+
+        OutputStream open() {
+            memory = new ByteArrayOutputStream();
+            return new OutputStream() {
+                private OutputStream disk;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (disk == null && memory.size() + len > MEMORY_SEGMENT_LIMIT) {
+                        tempDir.mkdirs();
+                        file = new File(tempDir, "segment-" + UUID.randomUUID() + ".tmp");
+                        disk = new FileOutputStream(file);
+                        memory.writeTo(disk);
+                        fileBytes = memory.size();
+                        memory = null;
+                    }
+                    if (disk != null) {
+                        disk.write(b, off, len);
+                        fileBytes += len;
+                    } else {
+                        memory.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (disk != null) disk.close();
+                }
+            };
+        }
+
+        long compressedSize() {
+            if (source != null) return size;
+            return file != null ? fileBytes : memory.size();
+        }
+
+        long copyTo(OutputStream dst) throws IOException {
+            if (source != null) return source.writeTo(dst);
+            if (file == null) {
+                memory.writeTo(dst);
+                return memory.size();
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                return in.transferTo(dst);
+            }
+        }
+
+        void delete() {
+            memory = null;
+            if (file != null) file.delete();
+        }
+    }
+}
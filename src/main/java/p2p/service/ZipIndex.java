@@ -0,0 +1,302 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * ZipIndex - parsed central directory of a ZIP file, for serving single entries.
+ *
+ * The central directory is read once (including ZIP64 records) and cached per file; an entry is
+ * then served by seeking to its local header. STORED entries are copied with
+ * FileChannel.transferTo, DEFLATED entries are inflated on the fly.
+ */
+public class ZipIndex {
+
+    private static final int CACHE_SIZE = 64;
+    private static final Map<String, ZipIndex> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final long centralDirectoryOffset;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName = new LinkedHashMap<>();
+
+    /**
+     * One entry of the central directory.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long localHeaderOffset;
+        private final long dosTime;
+
+        Entry(String name, int method, long crc, long size, long compressedSize, long localHeaderOffset, long dosTime) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+            this.dosTime = dosTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isStored() {
+            return method == ZipBundleWriter.METHOD_STORED;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        int getMethod() {
+            return method;
+        }
+
+        long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        long getDosTime() {
+            return dosTime;
+        }
+    }
+
+    private ZipIndex(File file, long length, long lastModified, long centralDirectoryOffset, List<Entry> entries) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.entries = Collections.unmodifiableList(entries);
+        for (Entry e : entries) {
+            byName.putIfAbsent(e.name, e);
+        }
+    }
+
+    /**
+     * Index of 'file', parsed on first use and reused while the file is unchanged.
+     */
+    public static ZipIndex of(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (CACHE) {
+            ZipIndex cached = CACHE.get(key);
+            if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+                return cached;
+            }
+        }
+        ZipIndex index = read(file);
+        synchronized (CACHE) {
+            CACHE.put(key, index);
+        }
+        return index;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry find(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Where the central directory starts, i.e. the end of the last entry's data.
+     */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Copy a STORED entry's bytes to 'target' without going through user-space buffers where
+     * the platform allows it.
+     */
+    public long transferStored(Entry e, WritableByteChannel target) throws IOException {
+        if (!e.isStored()) throw new IllegalArgumentException("entry is compressed: " + e.name);
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return FileContent.transferFully(ch, dataOffset(ch, e), e.compressedSize, target);
+        }
+    }
+
+    /**
+     * Stream over an entry's uncompressed bytes.
+     */
+    public InputStream openEntry(Entry e) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long start = dataOffset(ch, e);
+            InputStream raw = new RegionInputStream(ch, start, e.compressedSize);
+            if (e.isStored()) return raw;
+            Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(raw, inflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    private long dataOffset(FileChannel ch, Entry e) throws IOException {
+        ByteBuffer lh = readFully(ch, e.localHeaderOffset, 30);
+        if (lh.getInt(0) != 0x04034b50) throw new ZipException("Bad local header for " + e.name);
+        return e.localHeaderOffset + 30 + (lh.getShort(26) & 0xFFFF) + (lh.getShort(28) & 0xFFFF);
+    }
+
+    private static ZipIndex read(File file) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            // the end record is in the last 22 + 65535 (max comment) bytes
+            int tailLength = (int) Math.min(size, 22 + 0xFFFF);
+            ByteBuffer tail = readFully(ch, size - tailLength, tailLength);
+            int eocd = -1;
+            for (int i = tailLength - 22; i >= 0; i--) {
+                if (tail.getInt(i) == 0x06054b50) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) throw new ZipException("Not a zip file: " + file.getName());
+            long count = tail.getShort(eocd + 10) & 0xFFFF;
+            long cdSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+            long eocdPosition = size - tailLength + eocd;
+            if (eocdPosition >= 20) {
+                ByteBuffer locator = readFully(ch, eocdPosition - 20, 20);
+                if (locator.getInt(0) == 0x07064b50) {
+                    ByteBuffer z64 = readFully(ch, locator.getLong(8), 56);
+                    if (z64.getInt(0) != 0x06064b50) throw new ZipException("Bad ZIP64 end record");
+                    count = z64.getLong(32);
+                    cdSize = z64.getLong(40);
+                    cdOffset = z64.getLong(48);
+                }
+            }
+            if (cdOffset + cdSize > size || cdSize > Integer.MAX_VALUE) throw new ZipException("Bad central directory");
+
+            ByteBuffer cd = readFully(ch, cdOffset, (int) cdSize);
+            List<Entry> entries = new ArrayList<>();
+            int p = 0;
+            for (long i = 0; i < count; i++) {
+                if (p + 46 > cd.limit() || cd.getInt(p) != 0x02014b50) throw new ZipException("Bad central directory entry");
+                int method = cd.getShort(p + 10) & 0xFFFF;
+                long dosTime = cd.getInt(p + 12) & 0xFFFFFFFFL;
+                long crc = cd.getInt(p + 16) & 0xFFFFFFFFL;
+                long csize = cd.getInt(p + 20) & 0xFFFFFFFFL;
+                long usize = cd.getInt(p + 24) & 0xFFFFFFFFL;
+                int nameLength = cd.getShort(p + 28) & 0xFFFF;
+                int extraLength = cd.getShort(p + 30) & 0xFFFF;
+                int commentLength = cd.getShort(p + 32) & 0xFFFF;
+                long offset = cd.getInt(p + 42) & 0xFFFFFFFFL;
+                byte[] nameBytes = new byte[nameLength];
+                cd.get(p + 46, nameBytes);
+                // ZIP64 extra field: only the values that are saturated in the fixed fields, in this order
+                int x = p + 46 + nameLength;
+                int xEnd = x + extraLength;
+                while (x + 4 <= xEnd) {
+                    int id = cd.getShort(x) & 0xFFFF;
+                    int len = cd.getShort(x + 2) & 0xFFFF;
+                    if (id == 0x0001) {
+                        int q = x + 4;
+                        if (usize == 0xFFFFFFFFL) { usize = cd.getLong(q); q += 8; }
+                        if (csize == 0xFFFFFFFFL) { csize = cd.getLong(q); q += 8; }
+                        if (offset == 0xFFFFFFFFL) { offset = cd.getLong(q); }
+                    }
+                    x += 4 + len;
+                }
+                if (method != ZipBundleWriter.METHOD_STORED && method != ZipBundleWriter.METHOD_DEFLATED) {
+                    throw new ZipException("Unsupported compression method " + method);
+                }
+                entries.add(new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, crc, usize, csize, offset, dosTime));
+                p += 46 + nameLength + extraLength + commentLength;
+            }
+            return new ZipIndex(file, length, lastModified, cdOffset, entries);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new ZipException("Truncated zip file");
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Reads [start, start + length) of a channel; closes the channel when closed.
+     */
+    private static final class RegionInputStream extends InputStream {
+        private final FileChannel ch;
+        private long position;
+        private final long end;
+
+        RegionInputStream(FileChannel ch, long start, long length) {
+            this.ch = ch;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == 1 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) return -1;
+            int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) return -1;
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package p2p.utils;
+
+/**
+ * Crc32Combine - CRC-32 of a concatenation from the CRCs of its pieces (zlib's crc32_combine).
+ *
+ * Given crc1 = CRC32(A), crc2 = CRC32(B) and the length of B, computes CRC32(A + B) without
+ * touching the data, so pieces checksummed on different threads can be joined in order.
+ */
+public final class Crc32Combine {
+
+    private static final int GF2_DIM = 32;
+
+    private Crc32Combine() {
+    }
+
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+        long[] even = new long[GF2_DIM];
+        long[] odd = new long[GF2_DIM];
+
+        // operator for one zero bit in odd
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+
+        // apply len2 zero bytes to crc1 (first square puts the operator for one zero byte in even)
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>>= 1;
+            if (len2 == 0) break;
+
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>>= 1;
+        } while (len2 != 0);
+
+        return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package p2p.utils;
+
+/**
+ * EnvUtils - typed access to environment-variable settings with defaults.
+ */
+public class EnvUtils {
+
+    public static long getLong(String name, long def) {
+        String v = System.getenv(name);
+        if (v == null || v.trim().isEmpty()) return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid " + name + "=" + v);
+            return def;
+        }
+    }
+
+    public static int getInt(String name, int def) {
+        return (int) getLong(name, def);
+    }
+
+    public static boolean getBoolean(String name, boolean def) {
+        String v = System.getenv(name);
+        if (v == null || v.trim().isEmpty()) return def;
+        return v.trim().equalsIgnoreCase("true") || v.trim().equals("1") || v.trim().equalsIgnoreCase("yes");
+    }
+}
@@ -0,0 +1,179 @@
+package p2p.utils;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TimingWheel - hashed timing wheel for many long, mostly cancelled timeouts.
+ *
+ * Timeouts are hashed into one of 'wheelSize' buckets by their deadline tick and carry the number
+ * of full turns left. One thread advances the wheel every 'tickMillis' and visits only the current
+ * bucket, so scheduling, cancelling and expiring are O(1) per timeout regardless of how many are
+ * pending. New timeouts are handed to the wheel thread through a lock-free queue; cancelled ones
+ * are dropped lazily when their bucket comes round. Tasks run on the wheel thread and should be short.
+ */
+public class TimingWheel implements Closeable {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // nanos since the wheel started
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran (or was cancelled before)
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * Singly linked list of the timeouts hashed to one slot.
+     */
+    private static final class Bucket {
+        private Timeout head;
+
+        void add(Timeout t) {
+            t.next = head;
+            head = t;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private long tick;
+    private volatile boolean closed;
+
+    /**
+     * @param tickMillis resolution; timeouts fire up to one tick late
+     * @param wheelSize  number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run 'task' on the wheel thread after 'delay'.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) throw new IllegalStateException("TimingWheel is closed");
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout t = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(t);
+        return t;
+    }
+
+    /**
+     * Timeouts scheduled and not yet run or dropped after cancellation.
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (closed) return;
+                    continue;
+                }
+            }
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() == CANCELLED) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long due = t.deadline / tickNanos;
+            t.remainingRounds = (due - tick) / wheel.length;
+            // a deadline already in the past goes into the current slot
+            long slot = Math.max(due, tick);
+            wheel[(int) (slot & mask)].add(t);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout prev = null;
+        Timeout t = bucket.head;
+        while (t != null) {
+            Timeout next = t.next;
+            boolean drop;
+            if (t.state.get() == CANCELLED) {
+                drop = true;
+            } else if (t.remainingRounds <= 0) {
+                drop = true;
+                if (t.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (Throwable e) {
+                        System.err.println("TimingWheel: task failed: " + e);
+                    }
+                }
+            } else {
+                drop = false;
+                t.remainingRounds--;
+            }
+            if (drop) {
+                if (prev == null) bucket.head = next;
+                else prev.next = next;
+                t.next = null;
+                pending.decrementAndGet();
+            } else {
+                prev = t;
+            }
+            t = next;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+}
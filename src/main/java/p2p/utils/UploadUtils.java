@@ -1,15 +1,69 @@
 package p2p.utils;
 
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.Locale;
 
 public class UploadUtils {
 
-    public static Integer generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
+    /**
+     * Crockford base32: digits and upper-case letters without I, L, O and U, so codes survive being
+     * read aloud or typed from paper.
+     */
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
 
-        Random random = new Random();
-        return random.nextInt(DYNAMIC_ENDING_PORT-DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
+    /**
+     * Characters per invite code; 10 base32 characters carry 50 random bits.
+     */
+    public static final int CODE_LENGTH = 10;
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    /**
+     * A new random invite code of CODE_LENGTH characters from the Crockford alphabet.
+     * Uniqueness is up to the caller (FileSharer allocates with putIfAbsent).
+     */
+    public static String generateCode() {
+        long bits = RANDOM.get().nextLong();
+        char[] code = new char[CODE_LENGTH];
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            code[i] = ALPHABET[(int) (bits & 31)];
+            bits >>>= 5;
+        }
+        return new String(code);
+    }
+
+    /**
+     * A secret of two codes (100 random bits) for things that must not be guessable from the invite
+     * code, such as the right to append to a share.
+     */
+    public static String generateToken() {
+        return generateCode() + generateCode();
+    }
+
+    /**
+     * The canonical form of a code as typed by a user: case-insensitive, '-' and spaces are ignored
+     * and the look-alikes O, I and L are read as 0, 1 and 1.
+     *
+     * @return the canonical code, or null if 'input' cannot be an invite code
+     */
+    public static String normalizeCode(String input) {
+        if (input == null) return null;
+        StringBuilder sb = new StringBuilder(CODE_LENGTH);
+        for (char c : input.toUpperCase(Locale.ROOT).toCharArray()) {
+            if (c == '-' || c == ' ') continue;
+            if (c == 'O') c = '0';
+            else if (c == 'I' || c == 'L') c = '1';
+            if (!isCodeChar(c) || sb.length() == CODE_LENGTH) return null;
+            sb.append(c);
+        }
+        return sb.length() == CODE_LENGTH ? sb.toString() : null;
+    }
+
+    private static boolean isCodeChar(char c) {
+        for (char a : ALPHABET) {
+            if (a == c) return true;
+        }
+        return false;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class FileControllerTest {
+
+    @Test
+    public void escapesDownloadNamesInContentDisposition() {
+        assertEquals("attachment; filename=\"report.pdf\"; filename*=UTF-8''report.pdf",
+                FileController.contentDisposition("report.pdf"));
+        // quotes, backslashes and line breaks cannot end the parameter or the header
+        assertEquals("attachment; filename=\"a_b__x_ c\"; filename*=UTF-8''a%22b%0D%0Ax%5C%20c",
+                FileController.contentDisposition("a\"b\r\nx\\ c"));
+        assertEquals("attachment; filename=\"__*.txt\"; filename*=UTF-8''%C3%BC%E2%82%AC%2A.txt",
+                FileController.contentDisposition("ü€*.txt"));
+    }
+}
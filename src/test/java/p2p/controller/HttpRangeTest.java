@@ -0,0 +1,50 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class HttpRangeTest {
+
+    @Test
+    public void parsesRangeSets() {
+        List<HttpRange> r = HttpRange.parse("bytes=0-99, 500-, -200", 1000);
+        assertEquals(3, r.size());
+        assertEquals("bytes 0-99/1000", r.get(0).contentRange(1000));
+        assertEquals("bytes 500-999/1000", r.get(1).contentRange(1000));
+        assertEquals("bytes 800-999/1000", r.get(2).contentRange(1000));
+        assertEquals(200, r.get(2).length());
+
+        // clamped to the end, suffix longer than the content
+        assertEquals("bytes 900-999/1000", HttpRange.parse("bytes=900-5000", 1000).get(0).contentRange(1000));
+        assertEquals("bytes 0-999/1000", HttpRange.parse("bytes=-5000", 1000).get(0).contentRange(1000));
+
+        // unsatisfiable: start past the end
+        assertTrue(HttpRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(HttpRange.parse("bytes=0-", 0).isEmpty());
+
+        // ignored: not a valid bytes range set, or too many ranges
+        assertNull(HttpRange.parse("items=0-1", 1000));
+        assertNull(HttpRange.parse("bytes=5-1", 1000));
+        assertNull(HttpRange.parse("bytes=abc", 1000));
+        assertNull(HttpRange.parse("bytes=+1-2", 1000));
+        assertNull(HttpRange.parse("bytes=" + "0-0,".repeat(HttpRange.MAX_RANGES) + "1-1", 1000));
+    }
+
+    @Test
+    public void checksIfRange() {
+        long modified = 1_700_000_000_123L;
+        assertTrue(HttpRange.ifRangeMatches(null, "\"a\"", modified));
+        assertTrue(HttpRange.ifRangeMatches("\"a\"", "\"a\"", modified));
+        assertFalse(HttpRange.ifRangeMatches("\"b\"", "\"a\"", modified));
+        assertFalse(HttpRange.ifRangeMatches("W/\"a\"", "\"a\"", modified));
+        assertTrue(HttpRange.ifRangeMatches(HttpRange.httpDate(modified), "\"a\"", modified));
+        assertFalse(HttpRange.ifRangeMatches(HttpRange.httpDate(modified + 1000), "\"a\"", modified));
+        assertFalse(HttpRange.ifRangeMatches("yesterday", "\"a\"", modified));
+    }
+}
@@ -0,0 +1,125 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class MultipartStreamReaderTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /** Returns at most 'chunk' bytes per read so delimiters straddle buffer refills. */
+    private static InputStream trickle(byte[] data, int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static byte[] body(byte[]... files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("preamble\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < files.length; i++) {
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"files\"; filename=\"f" + i + ".bin\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(files[i]);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsEveryPartAcrossSmallReads() throws IOException {
+        byte[] large = new byte[3 * MultipartStreamReader.BUFFER_SIZE + 17];
+        new Random(42).nextBytes(large);
+        byte[] tricky = ("\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-").getBytes(StandardCharsets.US_ASCII);
+        byte[][] files = { "hello".getBytes(StandardCharsets.US_ASCII), new byte[0], large, tricky };
+
+        for (int chunk : new int[] { 1, 7, 4096, Integer.MAX_VALUE }) {
+            MultipartStreamReader msr = new MultipartStreamReader(trickle(body(files), chunk),
+                    ("--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < files.length; i++) {
+                MultipartPart part = msr.readNextPart();
+                assertEquals("form-data; name=\"files\"; filename=\"f" + i + ".bin\"",
+                        part.getHeaders().get("Content-Disposition"));
+                assertEquals("files", part.getName());
+                assertEquals("f" + i + ".bin", part.getFilename());
+                assertArrayEquals(files[i], readAll(part.getInputStream()), "part " + i + ", chunk " + chunk);
+            }
+            assertNull(msr.readNextPart());
+        }
+    }
+
+    @Test
+    public void skipsPartsThatAreNotRead() throws IOException {
+        byte[][] files = { new byte[100_000], "second".getBytes(StandardCharsets.US_ASCII) };
+        MultipartStreamReader msr = new MultipartStreamReader(trickle(body(files), 1000),
+                ("--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+        MultipartPart first = msr.readNextPart();
+        assertEquals(0, first.getInputStream().read());
+        MultipartPart second = msr.readNextPart();
+        assertArrayEquals(files[1], readAll(second.getInputStream()));
+        assertNull(msr.readNextPart());
+    }
+
+    @Test
+    public void transfersPartsToChannels() throws IOException {
+        byte[] large = new byte[MultipartStreamReader.BUFFER_SIZE * 2 + 5];
+        new Random(7).nextBytes(large);
+        byte[][] files = { large, "tail".getBytes(StandardCharsets.US_ASCII) };
+        MultipartStreamReader msr = new MultipartStreamReader(trickle(body(files), 3000),
+                ("--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII), ByteBuffer.allocate(1024));
+        for (byte[] file : files) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(file.length, msr.readNextPart().transferTo(Channels.newChannel(out)));
+            assertArrayEquals(file, out.toByteArray());
+        }
+        assertNull(msr.readNextPart());
+    }
+
+    @Test
+    public void parsesDispositionParameters() throws IOException {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "content-disposition:form-data; name=\"format\"\r\n\r\n"
+                + "tar\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "CONTENT-DISPOSITION: form-data; name=files; filename=\"a \\\"b\\\"; c%20d.txt\"\r\n"
+                + "X-Custom: 1\r\n\r\n"
+                + "x\r\n"
+                + "--" + BOUNDARY + "--";
+        MultipartStreamReader msr = new MultipartStreamReader(trickle(body.getBytes(StandardCharsets.UTF_8), 5),
+                ("--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+        MultipartPart field = msr.readNextPart();
+        assertEquals("format", field.getName());
+        assertNull(field.getFilename());
+        assertEquals("tar", new String(readAll(field.getInputStream()), StandardCharsets.UTF_8));
+
+        MultipartPart file = msr.readNextPart();
+        assertEquals("files", file.getName());
+        assertEquals("a \"b\"; c d.txt", file.getFilename());
+        assertEquals("1", file.getHeaders().get("X-Custom"));
+        assertArrayEquals("x".getBytes(StandardCharsets.UTF_8), readAll(file.getInputStream()));
+        assertNull(msr.readNextPart());
+    }
+}
@@ -0,0 +1,47 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class BlobStoreTest {
+
+    @TempDir
+    File dir;
+
+    private BlobContent upload(BlobStore store, byte[] data, String name) throws IOException {
+        UploadSpool spool = new UploadSpool(store.newTempFile(), data.length);
+        spool.write(ByteBuffer.wrap(data));
+        spool.close();
+        return (BlobContent) spool.toContent(name, store);
+    }
+
+    @Test
+    public void identicalUploadsShareOneReferenceCountedBlob() throws IOException {
+        BlobStore store = new BlobStore(dir);
+        byte[] data = new byte[300_000]; // above the in-memory threshold
+
+        BlobContent first = upload(store, data, "a.bin");
+        BlobContent second = upload(store, data, "b.bin");
+        assertEquals(first.getFile(), second.getFile());
+        assertEquals(2, store.getRefCount(first.getDigest()));
+        assertEquals(0, new File(dir, "tmp").list().length, "duplicate temp file is dropped");
+
+        BlobContent third = upload(store, data, "c.bin");
+        assertEquals(3, store.getRefCount(first.getDigest()));
+
+        first.release();
+        first.release(); // releasing twice drops only one reference
+        second.release();
+        assertTrue(third.getFile().isFile());
+        third.release();
+        assertFalse(third.getFile().exists(), "blob is deleted with its last reference");
+    }
+}
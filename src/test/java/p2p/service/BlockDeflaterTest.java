@@ -0,0 +1,65 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BlockDeflaterTest {
+
+    @Test
+    public void blocksJoinIntoOneDeflateStream() throws IOException, DataFormatException {
+        // text with long-range repeats, so dictionary priming matters, plus an exact multiple of the block size
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(17);
+        while (sb.length() < 64 * 1024 * 10) {
+            sb.append("record ").append(random.nextInt(500)).append(" value ").append(random.nextInt(50)).append('\n');
+        }
+        byte[] data = sb.substring(0, 64 * 1024 * 10).getBytes();
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            BlockDeflater deflater = new BlockDeflater(pool, 64 * 1024, 3, Deflater.DEFAULT_COMPRESSION);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            deflater.deflate(new ByteArrayInputStream(data), out);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            assertEquals(crc.getValue(), deflater.getCrc());
+            assertEquals(data.length, deflater.getSize());
+            assertEquals(out.size(), deflater.getCompressedSize());
+            assertTrue(out.size() < data.length / 3);
+
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(out.toByteArray());
+            byte[] restored = new byte[data.length];
+            int n = 0;
+            while (!inflater.finished()) {
+                n += inflater.inflate(restored, n, restored.length - n);
+            }
+            inflater.end();
+            assertEquals(data.length, n);
+            assertArrayEquals(data, restored);
+
+            // empty input still yields a valid, finished stream
+            out.reset();
+            deflater.deflate(new ByteArrayInputStream(new byte[0]), out);
+            assertEquals(0, deflater.getCrc());
+            assertTrue(out.size() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileContentTest {
+
+    @TempDir
+    File dir;
+
+    /**
+     * Accepts at most 'limit' bytes per write, like a socket with a full send buffer.
+     */
+    private static final class TrickleChannel implements WritableByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int limit;
+
+        TrickleChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(limit, src.remaining());
+            byte[] b = new byte[n];
+            src.get(b);
+            received.write(b, 0, n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void transfersRangesAcrossPartialWrites() throws IOException {
+        byte[] data = new byte[300_000];
+        new Random(3).nextBytes(data);
+        File f = new File(dir, "data.bin");
+        Files.write(f.toPath(), data);
+
+        TrickleChannel whole = new TrickleChannel(777);
+        assertEquals(data.length, new FileContent(f, "data.bin", false).transferTo(whole));
+        assertArrayEquals(data, whole.received.toByteArray());
+
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            TrickleChannel part = new TrickleChannel(1000);
+            assertEquals(100_000, FileContent.transferFully(ch, 12_345, 100_000, part));
+            assertArrayEquals(Arrays.copyOfRange(data, 12_345, 112_345), part.received.toByteArray());
+
+            // asking for more than the file holds
+            assertThrows(EOFException.class, () -> FileContent.transferFully(ch, 250_000, 100_000, new TrickleChannel(4096)));
+        }
+    }
+
+    @Test
+    public void writesRanges() throws IOException {
+        byte[] data = new byte[200_000];
+        new Random(5).nextBytes(data);
+        File f = new File(dir, "data.bin");
+        Files.write(f.toPath(), data);
+        FileContent content = new FileContent(f, "data.bin", false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.writeRange(out, 70_000, 100_000);
+        assertArrayEquals(Arrays.copyOfRange(data, 70_000, 170_000), out.toByteArray());
+
+        assertThrows(EOFException.class, () -> content.writeRange(new ByteArrayOutputStream(), 150_000, 100_000));
+    }
+}
@@ -0,0 +1,139 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class FileSharerTest {
+
+    private static byte[] download(int port, String code) throws IOException {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.getOutputStream().write((code + "\n").getBytes(StandardCharsets.US_ASCII));
+            s.getOutputStream().flush();
+            try (InputStream in = s.getInputStream()) {
+                return in.readAllBytes();
+            }
+        }
+    }
+
+    @Test
+    public void servesConcurrentDownloadsUpToTheCap() throws Exception {
+        byte[] data = new byte[2_000_000];
+        new Random(7).nextBytes(data);
+        CountDownLatch released = new CountDownLatch(1);
+
+        try (FileSharer sharer = new FileSharer(new InetSocketAddress("127.0.0.1", 0))) {
+            String code = sharer.offerContent(new MemoryContent("data.bin", ByteBuffer.wrap(data), released::countDown), 3, 0);
+            int port = sharer.getTransferPort();
+
+            // the entry reader pins the share, so it outlives the last download
+            Share share = sharer.getShare(code.toLowerCase());
+            assertTrue(share.pin());
+
+            Thread[] threads = new Thread[3];
+            byte[][] results = new byte[3][];
+            for (int i = 0; i < threads.length; i++) {
+                int n = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        results[n] = download(port, code);
+                    } catch (IOException e) {
+                        results[n] = new byte[0];
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) t.join(10_000);
+            for (byte[] r : results) assertArrayEquals(data, r);
+
+            // cap reached: unregistered, further connections get nothing
+            assertNull(sharer.getShare(code));
+            assertEquals(0, download(port, code).length);
+            assertEquals(3, share.getDownloads());
+            assertEquals(3, share.getCompletedDownloads());
+
+            assertFalse(released.await(200, TimeUnit.MILLISECONDS));
+            share.unpin();
+            assertTrue(released.await(1, TimeUnit.SECONDS));
+            assertFalse(share.pin());
+        }
+    }
+
+    @Test
+    public void resumesAnInterruptedDownloadOfAUsedUpShareWithItsTicket() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        try (FileSharer sharer = new FileSharer(null)) {
+            String code = sharer.offerContent(new MemoryContent("data.bin", ByteBuffer.wrap(new byte[1000]), released::countDown), 1, 0);
+
+            Share share = sharer.openDownload(code, null);
+            String ticket = sharer.countDownload(share, true);
+            assertEquals(10, ticket.length());
+            // the only download breaks off: no new download, but the share stays for the ticket
+            sharer.closeDownload(share, ticket, true, 400, false);
+            assertNull(sharer.getShare(code));
+            assertNull(sharer.openDownload(code, null));
+            assertNull(sharer.openDownload(code, "0000000000"));
+            assertFalse(released.await(100, TimeUnit.MILLISECONDS));
+
+            // a resume that does not reach the end keeps the ticket, the one that does uses it up
+            Share resumed = sharer.openDownload(code, ticket);
+            assertTrue(resumed.hasTicket(ticket));
+            sharer.closeDownload(resumed, ticket, false, 100, false);
+            resumed = sharer.openDownload(code, ticket);
+            sharer.closeDownload(resumed, ticket, false, 500, true);
+            assertEquals(1, share.getDownloads());
+            assertEquals(1, share.getCompletedDownloads());
+
+            assertTrue(released.await(1, TimeUnit.SECONDS));
+            assertNull(sharer.openDownload(code, ticket));
+        }
+    }
+
+    @Test
+    public void segmentsOfADownloadShareItsTicket() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        try (FileSharer sharer = new FileSharer(null)) {
+            String code = sharer.offerContent(new MemoryContent("data.bin", ByteBuffer.wrap(new byte[1000]), released::countDown), 1, 0);
+            Share share = sharer.openDownload(code, null);
+            String ticket = sharer.countDownload(share, true);
+            sharer.closeDownload(share, ticket, true, 250, false);
+
+            // the last segment finishes before the others have started: the ticket stays for them
+            Share last = sharer.openDownload(code, ticket);
+            sharer.closeDownload(last, ticket, false, 250, true, false);
+            Share middle = sharer.openDownload(code, ticket);
+            assertTrue(middle.hasTicket(ticket));
+            sharer.closeDownload(middle, ticket, false, 500, false);
+            assertEquals(1, share.getDownloads());
+            assertFalse(released.await(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void appendTokensAreSecretPerShare() throws Exception {
+        try (FileSharer sharer = new FileSharer(null)) {
+            Share a = sharer.getShare(sharer.offerContent(new MemoryContent("a.bin", ByteBuffer.wrap(new byte[10]), null)));
+            Share b = sharer.getShare(sharer.offerContent(new MemoryContent("b.bin", ByteBuffer.wrap(new byte[10]), null)));
+            assertEquals(20, a.getAppendToken().length());
+            assertTrue(a.isAppendToken(a.getAppendToken()));
+            // neither the invite code nor another share's token will do
+            assertFalse(a.isAppendToken(a.getCode()));
+            assertFalse(a.isAppendToken(b.getAppendToken()));
+            assertFalse(a.isAppendToken(null));
+        }
+    }
+}
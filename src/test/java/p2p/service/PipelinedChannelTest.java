@@ -0,0 +1,47 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+public class PipelinedChannelTest {
+
+    @Test
+    public void deliversAllBytesInOrder() throws IOException {
+        byte[] data = new byte[PipelinedChannel.BUFFER_SIZE * 10 + 123];
+        new Random(3).nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+
+        PipelinedChannel pipe = new PipelinedChannel(target, 2);
+        for (int off = 0; off < data.length; off += 5000) {
+            pipe.write(ByteBuffer.wrap(data, off, Math.min(5000, data.length - off)));
+        }
+        pipe.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void reportsWriterFailures() {
+        WritableByteChannel broken = new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException { throw new IOException("disk full"); }
+            public boolean isOpen() { return true; }
+            public void close() { }
+        };
+        PipelinedChannel pipe = new PipelinedChannel(broken, 2);
+        assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 100; i++) {
+                pipe.write(ByteBuffer.allocate(PipelinedChannel.BUFFER_SIZE));
+            }
+            pipe.close();
+        });
+    }
+}
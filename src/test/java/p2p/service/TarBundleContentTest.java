@@ -0,0 +1,119 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TarBundleContentTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void writesUstarArchiveOfKnownSize() throws IOException {
+        byte[] data = new byte[1500];
+        new Random(2).nextBytes(data);
+        File file = new File(dir, "data.bin");
+        Files.write(file.toPath(), data);
+        String longName = "x".repeat(120) + ".txt";
+
+        TarBundleContent tar = new TarBundleContent("bundle.tar", List.of(
+                new FileContent(file, "data.bin", false),
+                new MemoryContent(longName, ByteBuffer.wrap("hello".getBytes()), null)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = tar.writeTo(out);
+        byte[] archive = out.toByteArray();
+        assertEquals(tar.size(), written);
+        assertEquals(archive.length, written);
+
+        // first header: name, octal size, valid checksum; data follows at 512, padded to 2048
+        assertEquals("data.bin", new String(archive, 0, 8, StandardCharsets.US_ASCII));
+        assertEquals(1500, Long.parseLong(new String(archive, 124, 11, StandardCharsets.US_ASCII), 8));
+        assertEquals("ustar", new String(archive, 257, 5, StandardCharsets.US_ASCII));
+        long sum = 0;
+        for (int i = 0; i < 512; i++) sum += i >= 148 && i < 156 ? ' ' : archive[i] & 0xFF;
+        assertEquals(sum, Long.parseLong(new String(archive, 148, 6, StandardCharsets.US_ASCII), 8));
+        assertArrayEquals(data, Arrays.copyOfRange(archive, 512, 512 + 1500));
+
+        // the long name goes into a pax header ('x') before the entry
+        assertEquals('x', archive[2048 + 156]);
+        String pax = new String(archive, 2048 + 512, 200, StandardCharsets.UTF_8);
+        assertTrue(pax.contains(" path=" + longName + "\n"));
+        int recordLength = Integer.parseInt(pax.substring(0, pax.indexOf(' ')));
+        assertEquals('\n', pax.charAt(recordLength - 1));
+
+        // ends with two zero blocks
+        for (int i = archive.length - 1024; i < archive.length; i++) assertEquals(0, archive[i]);
+    }
+
+    @Test
+    public void snapshotKeepsItsEntriesWhenTheBundleGrows() throws IOException {
+        File file = new File(dir, "a.txt");
+        Files.write(file.toPath(), "first".getBytes());
+        TarBundleContent tar = new TarBundleContent("bundle.tar", List.of(new FileContent(file, "a.txt", true)));
+        SharedContent snapshot = tar.snapshot();
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        snapshot.writeTo(before);
+
+        assertTrue(tar.addEntries(List.of(new MemoryContent("b.txt", ByteBuffer.wrap("second".getBytes()), null))));
+        assertEquals(2, tar.getEntries().size());
+        assertEquals(before.size(), snapshot.size());
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        snapshot.writeTo(again);
+        assertArrayEquals(before.toByteArray(), again.toByteArray());
+
+        // the entries belong to the bundle, not to the snapshot
+        snapshot.release();
+        assertTrue(file.exists());
+        tar.release();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void rangesMatchTheGeneratedArchive() throws IOException {
+        byte[] data = new byte[1500];
+        new Random(3).nextBytes(data);
+        File file = new File(dir, "data.bin");
+        Files.write(file.toPath(), data);
+        TarBundleContent tar = new TarBundleContent("bundle.tar", List.of(
+                new FileContent(file, "data.bin", false),
+                new MemoryContent("y".repeat(150), ByteBuffer.wrap("hello".getBytes()), null),
+                new MemoryContent("empty.txt", ByteBuffer.wrap(new byte[0]), null)));
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        tar.writeTo(whole);
+        byte[] archive = whole.toByteArray();
+
+        Random random = new Random(4);
+        long[][] ranges = {{0, archive.length}, {0, 1}, {archive.length - 1, 1}, {511, 3}, {512, 1500}, {2047, 2}};
+        for (int i = 0; i < 200 + ranges.length; i++) {
+            long offset;
+            long length;
+            if (i < ranges.length) {
+                offset = ranges[i][0];
+                length = ranges[i][1];
+            } else {
+                offset = random.nextInt(archive.length);
+                length = 1 + random.nextInt(archive.length - (int) offset);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(length, tar.writeRange(out, offset, length));
+            assertArrayEquals(Arrays.copyOfRange(archive, (int) offset, (int) (offset + length)), out.toByteArray(),
+                    "range " + offset + "+" + length);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TransferListenerTest {
+
+    @Test
+    public void routesConnectionsByHandshake() throws IOException {
+        TransferListener.Handler echoCode = (code, channel) ->
+                channel.write(ByteBuffer.wrap(("share " + code).getBytes(StandardCharsets.US_ASCII)));
+        try (TransferListener listener = new TransferListener(new InetSocketAddress("127.0.0.1", 0), echoCode)) {
+            // several connections open at once, handshakes sent in pieces and out of order
+            Socket[] sockets = new Socket[20];
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new Socket("127.0.0.1", listener.getPort());
+                sockets[i].getOutputStream().write(("code-" + i).getBytes(StandardCharsets.US_ASCII));
+            }
+            for (int i = sockets.length - 1; i >= 0; i--) {
+                OutputStream out = sockets[i].getOutputStream();
+                out.write('\n');
+                out.flush();
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                try (Socket s = sockets[i]; InputStream in = s.getInputStream()) {
+                    assertArrayEquals(("share code-" + i).getBytes(StandardCharsets.US_ASCII), in.readAllBytes());
+                }
+            }
+
+            // a handshake without a newline is dropped once it is too long
+            try (Socket s = new Socket("127.0.0.1", listener.getPort())) {
+                s.getOutputStream().write(new byte[128]);
+                assertEquals(-1, s.getInputStream().read());
+            }
+        }
+    }
+}
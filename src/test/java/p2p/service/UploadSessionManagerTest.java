@@ -0,0 +1,134 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class UploadSessionManagerTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void resumesFromCommittedOffsetAcrossRestarts() throws IOException {
+        byte[] data = new byte[150_000];
+        new Random(9).nextBytes(data);
+        File sessionsDir = new File(dir, "sessions");
+        BlobStore store = new BlobStore(new File(dir, "blobs"));
+
+        UploadSessionManager manager = new UploadSessionManager(sessionsDir);
+        UploadSession session = manager.create("data.bin", data.length);
+        assertEquals(60_000, manager.append(session, 0, new ByteArrayInputStream(data, 0, 60_000)));
+        assertThrows(UploadConflictException.class,
+                () -> manager.append(session, 0, new ByteArrayInputStream(data)));
+        assertThrows(UploadConflictException.class, () -> manager.finish(session, store, "data.bin"));
+
+        // a new manager over the same directory picks the session up where it stopped
+        UploadSessionManager restarted = new UploadSessionManager(sessionsDir);
+        UploadSession resumed = restarted.get(session.getId());
+        assertEquals(60_000, resumed.getOffset());
+        restarted.append(resumed, 60_000, new ByteArrayInputStream(Arrays.copyOfRange(data, 60_000, data.length)));
+
+        BlobContent blob = restarted.finish(resumed, store, "data.bin");
+        try (InputStream in = blob.openStream()) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        assertEquals(null, restarted.get(session.getId()));
+    }
+
+    @Test
+    public void parallelChunksArriveOutOfOrderAndSealTheFile() throws Exception {
+        byte[] data = new byte[100_000];
+        new Random(11).nextBytes(data);
+        String digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        int chunk = 16 * 1024;
+        File sessionsDir = new File(dir, "sessions");
+        BlobStore store = new BlobStore(new File(dir, "blobs"));
+
+        UploadSessionManager manager = new UploadSessionManager(sessionsDir);
+        UploadSession session = manager.create("data.bin", data.length, chunk, digest);
+        assertEquals(7, session.getChunkCount());
+
+        // the last chunk first, then the first three concurrently
+        assertFalse(manager.writeChunk(session, 6L * chunk, chunk(data, 6, chunk)));
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            results.add(pool.submit(() -> manager.writeChunk(session, (long) index * chunk, chunk(data, index, chunk))));
+        }
+        for (Future<Boolean> f : results) assertFalse(f.get());
+        pool.shutdown();
+        assertEquals(3L * chunk, session.getOffset());
+        assertThrows(UploadConflictException.class, () -> manager.writeChunk(session, 0, chunk(data, 0, chunk)));
+        assertThrows(UploadConflictException.class, () -> manager.writeChunk(session, 100, chunk(data, 0, chunk)));
+
+        // the bitmap survives a restart
+        UploadSessionManager restarted = new UploadSessionManager(sessionsDir);
+        UploadSession resumed = restarted.get(session.getId());
+        assertArrayEquals(new int[]{3, 4, 5}, resumed.getMissingChunks());
+        assertFalse(restarted.writeChunk(resumed, 5L * chunk, chunk(data, 5, chunk)));
+        assertFalse(restarted.writeChunk(resumed, 3L * chunk, chunk(data, 3, chunk)));
+        assertTrue(restarted.writeChunk(resumed, 4L * chunk, chunk(data, 4, chunk)));
+
+        BlobContent blob = restarted.finish(resumed, store, "data.bin");
+        assertEquals(digest, blob.getDigest());
+        try (InputStream in = blob.openStream()) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+    private static InputStream chunk(byte[] data, int index, int chunkSize) {
+        int from = index * chunkSize;
+        return new ByteArrayInputStream(data, from, Math.min(chunkSize, data.length - from));
+    }
+
+    @Test
+    public void dropsSessionsThatStopReceivingBytes() throws Exception {
+        File sessionsDir = new File(dir, "sessions");
+        UploadSessionManager manager = new UploadSessionManager(sessionsDir, 300);
+        try {
+            UploadSession idle = manager.create("idle.bin", 1000);
+            UploadSession active = manager.create("active.bin", 1000);
+            manager.append(idle, 0, new ByteArrayInputStream(new byte[100]));
+
+            // keep one session busy for longer than the timeout
+            for (int i = 0; i < 10; i++) {
+                manager.append(active, i * 50, new ByteArrayInputStream(new byte[50]));
+                Thread.sleep(60);
+            }
+            assertEquals(null, manager.get(idle.getId()));
+            assertFalse(new File(sessionsDir, idle.getId() + ".part").exists());
+            assertFalse(new File(sessionsDir, idle.getId() + ".properties").exists());
+            assertEquals(active, manager.get(active.getId()));
+
+            long deadline = System.currentTimeMillis() + 3000;
+            while (manager.get(active.getId()) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(null, manager.get(active.getId()));
+            assertEquals(0, sessionsDir.list().length);
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class UploadSpoolTest {
+
+    @TempDir
+    File dir;
+
+    private static byte[] spoolAndRead(UploadSpool spool, byte[] data, String name, boolean expectMemory) throws IOException {
+        for (int off = 0; off < data.length; off += 1000) {
+            spool.write(ByteBuffer.wrap(data, off, Math.min(1000, data.length - off)));
+        }
+        spool.close();
+        SharedContent content = spool.toContent(name, null);
+        assertTrue(expectMemory ? content instanceof MemoryContent : content instanceof FileContent);
+        try (InputStream in = content.openStream()) {
+            return in.readAllBytes();
+        } finally {
+            content.release();
+        }
+    }
+
+    @Test
+    public void smallPartsStayInMemory() throws IOException {
+        File target = new File(dir, "small");
+        byte[] data = "tiny upload".getBytes();
+        assertArrayEquals(data, spoolAndRead(new UploadSpool(target, -1), data, "small", true));
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void largePartsSpillToDisk() throws IOException {
+        File target = new File(dir, "large");
+        byte[] data = new byte[200_000];
+        new Random(1).nextBytes(data);
+        // size hint larger than the part: the file must be truncated to the real size
+        assertArrayEquals(data, spoolAndRead(new UploadSpool(target, 500_000), data, "large", false));
+        assertFalse(target.exists(), "owned file is deleted on release");
+    }
+}
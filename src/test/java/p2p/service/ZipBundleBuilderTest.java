@@ -0,0 +1,91 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+public class ZipBundleBuilderTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void partsAddedOneByOneFormTheArchive() throws IOException {
+        File zip = new File(dir, "bundle.zip");
+        ZipBundleBuilder builder = new ZipBundleBuilder(zip, new File(dir, "tmp"));
+        for (int i = 0; i < 20; i++) {
+            builder.add(new MemoryContent("part-" + i + ".txt", ByteBuffer.wrap(("part " + i + "\n").repeat(500).getBytes()), null));
+        }
+        FileContent content = builder.finish();
+        assertEquals("bundle.zip", content.getName());
+        assertEquals(zip.length(), content.size());
+
+        try (ZipFile zf = new ZipFile(zip)) {
+            assertEquals(20, zf.size());
+            try (InputStream in = zf.getInputStream(zf.getEntry("part-13.txt"))) {
+                assertArrayEquals(("part 13\n").repeat(500).getBytes(), in.readAllBytes());
+            }
+        }
+
+        File aborted = new File(dir, "aborted.zip");
+        ZipBundleBuilder other = new ZipBundleBuilder(aborted, new File(dir, "tmp"));
+        other.add(new MemoryContent("a.txt", ByteBuffer.wrap("a".getBytes()), null));
+        other.abort();
+        assertFalse(aborted.exists());
+    }
+
+    @Test
+    public void appendKeepsExistingEntriesAndRewritesDirectory() throws IOException {
+        File zip = new File(dir, "bundle.zip");
+        ZipBundleBuilder builder = new ZipBundleBuilder(zip, new File(dir, "tmp"));
+        builder.add(new MemoryContent("a.txt", ByteBuffer.wrap("first\n".repeat(100).getBytes()), null));
+        builder.add(new MemoryContent("b.txt", ByteBuffer.wrap("second\n".repeat(100).getBytes()), null));
+        ZipBundleFile bundle = builder.finish();
+        long oldDirectory = ZipIndex.of(zip).getCentralDirectoryOffset();
+        byte[] before = Files.readAllBytes(zip.toPath());
+        // a download that started before the append
+        SharedContent running = bundle.snapshot();
+
+        int count = bundle.append(List.of(
+                new MemoryContent("c.txt", ByteBuffer.wrap("third\n".repeat(100).getBytes()), null)), new File(dir, "tmp"));
+        assertEquals(3, count);
+        File next = bundle.getFile();
+        assertNotEquals(zip, next);
+        assertEquals(next.length(), bundle.size());
+        // the running download still reads the old archive
+        assertEquals(before.length, running.size());
+        assertArrayEquals(before, Files.readAllBytes(zip.toPath()));
+        byte[] after = Files.readAllBytes(next.toPath());
+        // everything before the old directory is copied unchanged
+        assertArrayEquals(Arrays.copyOf(before, (int) oldDirectory), Arrays.copyOf(after, (int) oldDirectory));
+
+        try (ZipFile zf = new ZipFile(next)) {
+            assertEquals(3, zf.size());
+            for (String[] e : new String[][]{{"a.txt", "first\n"}, {"b.txt", "second\n"}, {"c.txt", "third\n"}}) {
+                try (InputStream in = zf.getInputStream(zf.getEntry(e[0]))) {
+                    assertArrayEquals(e[1].repeat(100).getBytes(), in.readAllBytes());
+                }
+            }
+        }
+        assertEquals(3, ZipIndex.of(next).getEntries().size());
+
+        // the old archive goes with the last download of it, the current one with the bundle
+        running.release();
+        assertFalse(zip.exists());
+        bundle.release();
+        assertFalse(next.exists());
+    }
+}
@@ -0,0 +1,62 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class ZipBundleContentTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void generatesArchiveFromManifestWithoutTouchingDisk() throws IOException {
+        byte[] big = new byte[300_000];
+        new Random(3).nextBytes(big);
+        File file = new File(dir, "big.bin");
+        Files.write(file.toPath(), big);
+        byte[] small = "hello bundle".getBytes();
+
+        ZipBundleContent bundle = new ZipBundleContent("bundle.zip", List.of(
+                new MemoryContent("a.txt", ByteBuffer.wrap(small), null),
+                new FileContent(file, "big.bin", true)), new File(dir, "tmp"));
+        assertEquals(-1, bundle.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = bundle.writeTo(out);
+        assertEquals(out.size(), written);
+        assertEquals(1, dir.list().length); // nothing but the part itself
+
+        try (InputStream in = bundle.openStream()) {
+            assertArrayEquals(out.toByteArray(), in.readAllBytes());
+        }
+        try (ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry e = zin.getNextEntry();
+            assertEquals("a.txt", e.getName());
+            assertArrayEquals(small, zin.readAllBytes());
+            e = zin.getNextEntry();
+            assertEquals("big.bin", e.getName());
+            assertArrayEquals(big, zin.readAllBytes());
+            assertNull(zin.getNextEntry());
+        }
+
+        bundle.release();
+        assertFalse(file.exists());
+    }
+}
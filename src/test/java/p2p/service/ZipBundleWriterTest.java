@@ -0,0 +1,136 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ZipBundleWriterTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void parallelEntriesFormValidArchiveWithCentralDirectory() throws IOException {
+        Random random = new Random(5);
+        List<SharedContent> contents = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // a mix of compressible text, small random data and one segment too large for memory
+            byte[] bytes;
+            if (i == 7) {
+                bytes = new byte[3 * 1024 * 1024];
+                for (int j = 0; j < bytes.length; j++) bytes[j] = (byte) ('a' + random.nextInt(26));
+            } else if (i % 2 == 0) {
+                bytes = ("line " + i + "\n").repeat(1000 + i).getBytes();
+            } else {
+                bytes = new byte[random.nextInt(100_000)];
+                random.nextBytes(bytes);
+            }
+            data.add(bytes);
+            contents.add(new MemoryContent(name(i), ByteBuffer.wrap(bytes), null));
+        }
+
+        File zip = new File(dir, "out.zip");
+        File tmp = new File(dir, "tmp");
+        try (OutputStream out = new FileOutputStream(zip)) {
+            ZipBundleWriter writer = new ZipBundleWriter(out, tmp);
+            writer.writeAll(contents);
+            writer.finish();
+            assertEquals(zip.length(), writer.getBytesWritten());
+        }
+        assertEquals(0, tmp.list().length); // segments are removed once written
+
+        try (ZipFile zf = new ZipFile(zip)) {
+            assertEquals(40, zf.size());
+            for (int i = 0; i < 40; i++) {
+                ZipEntry e = zf.getEntry(name(i));
+                assertEquals(data.get(i).length, e.getSize());
+                // text is deflated; random data and .mp4 are stored (by probe and by extension)
+                int expected = i % 2 == 0 && i != 10 || i == 7 ? ZipEntry.DEFLATED : ZipEntry.STORED;
+                assertEquals(expected, e.getMethod(), name(i));
+                try (InputStream in = zf.getInputStream(e)) {
+                    assertArrayEquals(data.get(i), in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    private static String name(int i) {
+        return "dir/entry-" + i + "-é" + (i == 10 ? ".mp4" : ".bin");
+    }
+
+    @Test
+    public void abortDeletesTheSegmentOfAnEntryBeingCompressed() throws Exception {
+        byte[] bytes = new byte[4 * 1024 * 1024];
+        Random random = new Random(6);
+        for (int j = 0; j < bytes.length; j++) bytes[j] = (byte) ('a' + random.nextInt(26));
+        CountDownLatch compressing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        // holds its last read until the test has aborted, so the entry is mid-compression then
+        SharedContent slow = new SharedContent() {
+            @Override
+            public String getName() {
+                return "slow.txt";
+            }
+
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        if (pos == count) {
+                            compressing.countDown();
+                            try {
+                                proceed.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return super.read(b, off, len);
+                    }
+                };
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+
+        File tmp = new File(dir, "tmp");
+        ZipBundleWriter writer = new ZipBundleWriter(OutputStream.nullOutputStream(), tmp);
+        writer.add(slow);
+        assertTrue(compressing.await(10, TimeUnit.SECONDS));
+        assertEquals(1, tmp.list().length);
+        writer.abort();
+        proceed.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tmp.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, tmp.list().length);
+    }
+}
@@ -0,0 +1,70 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipIndexTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void servesSingleEntriesFromCentralDirectory() throws IOException {
+        byte[] text = "some text that compresses well\n".repeat(2000).getBytes();
+        byte[] random = new byte[70_000];
+        new Random(1).nextBytes(random);
+
+        // written by a foreign writer (data descriptors, mixed methods) to check the parser
+        File zip = new File(dir, "bundle.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new ZipEntry("docs/readme.txt"));
+            zos.write(text);
+            zos.closeEntry();
+            ZipEntry stored = new ZipEntry("raw.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(random.length);
+            CRC32 crc = new CRC32();
+            crc.update(random);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(random);
+            zos.closeEntry();
+        }
+
+        ZipIndex index = ZipIndex.of(zip);
+        assertSame(index, ZipIndex.of(zip));
+        assertEquals(2, index.getEntries().size());
+        assertNull(index.find("missing"));
+
+        ZipIndex.Entry readme = index.find("docs/readme.txt");
+        assertFalse(readme.isStored());
+        assertEquals(text.length, readme.getSize());
+        try (InputStream in = index.openEntry(readme)) {
+            assertArrayEquals(text, in.readAllBytes());
+        }
+
+        ZipIndex.Entry raw = index.find("raw.bin");
+        assertTrue(raw.isStored());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(random.length, index.transferStored(raw, Channels.newChannel(out)));
+        assertArrayEquals(random, out.toByteArray());
+    }
+}
@@ -0,0 +1,35 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class Crc32CombineTest {
+
+    private static long crc(byte[] data, int off, int len) {
+        CRC32 c = new CRC32();
+        c.update(data, off, len);
+        return c.getValue();
+    }
+
+    @Test
+    public void combinedCrcEqualsCrcOfConcatenation() {
+        byte[] data = new byte[1_000_003];
+        new Random(13).nextBytes(data);
+        for (int split : new int[]{0, 1, 31_337, 65_536, 999_999, data.length}) {
+            long combined = Crc32Combine.combine(crc(data, 0, split), crc(data, split, data.length - split), data.length - split);
+            assertEquals(crc(data, 0, data.length), combined, "split at " + split);
+        }
+
+        // folding many pieces left to right, as the block deflater does
+        long running = 0;
+        for (int off = 0; off < data.length; off += 4096) {
+            int len = Math.min(4096, data.length - off);
+            running = Crc32Combine.combine(running, crc(data, off, len), len);
+        }
+        assertEquals(crc(data, 0, data.length), running);
+    }
+}
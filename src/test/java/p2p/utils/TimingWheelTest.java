@@ -0,0 +1,64 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimingWheelTest {
+
+    @Test
+    public void runsTimeoutsAfterTheirDelayAndSkipsCancelledOnes() throws InterruptedException {
+        // 8 slots of 10 ms: delays up to 300 ms need several turns of the wheel
+        TimingWheel wheel = new TimingWheel("test-wheel", 10, 8);
+        try {
+            int n = 200;
+            CountDownLatch done = new CountDownLatch(n / 2);
+            AtomicInteger cancelledRan = new AtomicInteger();
+            ConcurrentHashMap<Integer, Long> lateness = new ConcurrentHashMap<>();
+            long start = System.nanoTime();
+            TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[n];
+            for (int i = 0; i < n; i++) {
+                int id = i;
+                long delay = (i * 37) % 300;
+                if (i % 2 == 0) {
+                    timeouts[i] = wheel.schedule(() -> {
+                        lateness.put(id, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) - delay);
+                        done.countDown();
+                    }, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    // far enough out to still be pending when cancelled below
+                    timeouts[i] = wheel.schedule(cancelledRan::incrementAndGet, 100 + delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            for (int i = 1; i < n; i += 2) {
+                assertTrue(timeouts[i].cancel());
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (long late : lateness.values()) {
+                assertTrue(late >= 0, "fired " + -late + " ms early");
+            }
+            for (int i = 0; i < n; i += 2) {
+                assertTrue(timeouts[i].isExpired());
+                assertFalse(timeouts[i].cancel());
+            }
+
+            // cancelled timeouts are dropped once their slot comes round
+            long deadline = System.currentTimeMillis() + 2000;
+            while (wheel.getPending() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, wheel.getPending());
+            assertEquals(0, cancelledRan.get());
+        } finally {
+            wheel.close();
+        }
+    }
+}
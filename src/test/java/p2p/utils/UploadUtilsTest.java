@@ -0,0 +1,37 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class UploadUtilsTest {
+
+    @Test
+    public void generatedCodesAreCanonicalAndDistinct() {
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String code = UploadUtils.generateCode();
+            assertEquals(UploadUtils.CODE_LENGTH, code.length());
+            assertEquals(code, UploadUtils.normalizeCode(code));
+            assertTrue(seen.add(code), "duplicate code " + code);
+        }
+    }
+
+    @Test
+    public void normalizesTypedCodes() {
+        assertEquals("7K3QX9MZ2D", UploadUtils.normalizeCode("7k3qx-9mz2d"));
+        assertEquals("7K3QX9MZ2D", UploadUtils.normalizeCode(" 7K3QX 9MZ2D "));
+        // look-alikes
+        assertEquals("0110000000", UploadUtils.normalizeCode("OIL0000000"));
+
+        assertNull(UploadUtils.normalizeCode("54033"));
+        assertNull(UploadUtils.normalizeCode("7K3QX9MZ2DA"));
+        assertNull(UploadUtils.normalizeCode("7K3QX9MZ2U"));
+        assertNull(UploadUtils.normalizeCode(null));
+    }
+}
@@ -23,7 +23,7 @@ export default function Home() {
   const [selectedFiles, setSelectedFiles] = useState<File[]>([]);
 
   // Invite / share state returned from backend
-  const [port, setPort] = useState<number | null>(null);
+  const [inviteCode, setInviteCode] = useState<string | null>(null);
   const [servedName, setServedName] = useState<string | null>(null);
   const [isZip, setIsZip] = useState<boolean | null>(null);
 
@@ -38,7 +38,7 @@ export default function Home() {
     setIsUploading(true);
     setUploadError(null);
     setUploadProgress(0);
-    setPort(null);
+    setInviteCode(null);
     setServedName(null);
     setIsZip(null);
 
@@ -64,7 +64,7 @@ export default function Home() {
       });
 
       const data = response.data;
-      setPort(data.inviteCode || data.port || null);
+      setInviteCode(data.inviteCode || null);
       setServedName(data.servedName || data.zipName || null);
       setIsZip(!!data.isZip);
 
@@ -85,12 +85,12 @@ export default function Home() {
   };
 
   // Download handler
-  const handleDownload = async (portToUse: number) => {
+  const handleDownload = async (code: string) => {
     setIsDownloading(true);
     setDownloadError(null);
     try {
       // 👇 changed to use API_BASE
-      const response = await axios.get(`${API_BASE}/download/${portToUse}`, {
+      const response = await axios.get(`${API_BASE}/download/${encodeURIComponent(code)}`, {
         responseType: 'blob',
       });
 
@@ -99,8 +99,11 @@ export default function Home() {
       let filename = servedName || 'download';
       const contentDisposition = response.headers['content-disposition'];
       if (contentDisposition) {
-        const match = contentDisposition.match(/filename="?([^"]+)"?/);
-        if (match) filename = match[1];
+        // prefer the exact UTF-8 name; the quoted filename is an ASCII fallback
+        const encoded = contentDisposition.match(/filename\*=UTF-8''([^;]+)/i);
+        const match = contentDisposition.match(/filename="?([^";]+)"?/);
+        if (encoded) filename = decodeURIComponent(encoded[1]);
+        else if (match) filename = match[1];
       } else if (isZip && filename && !filename.endsWith('.zip')) {
         filename = `${filename}.zip`;
       }
@@ -159,12 +162,12 @@ export default function Home() {
         {tab === 'upload' && (
           <div
             className={
-              port
+              inviteCode
                 ? 'grid grid-cols-1 lg:grid-cols-3 gap-6'
                 : 'max-w-3xl mx-auto'
             }
           >
-            <div className={port ? 'lg:col-span-2' : ''}>
+            <div className={inviteCode ? 'lg:col-span-2' : ''}>
               <FileUpload
                 onFilesUpload={handleFilesUpload}
                 isUploading={isUploading}
@@ -182,11 +185,11 @@ export default function Home() {
               )}
             </div>
 
-            {port && (
+            {inviteCode && (
               <aside className="lg:col-span-1">
                 <div className="sticky top-24">
                   <InviteCode
-                    port={port}
+                    code={inviteCode}
                     servedName={servedName}
                     isZip={isZip}
                   />
@@ -204,7 +207,7 @@ export default function Home() {
               error={downloadError}
             />
             <div className="mt-4 text-sm text-gray-500">
-              Enter the invite code (port) to download a file. If multiple files
+              Enter the invite code to download a file. If multiple files
               were uploaded you'll receive a zip.
             </div>
           </div>
@@ -4,7 +4,7 @@ import { useState } from 'react';
 import { FiDownload } from 'react-icons/fi';
 
 interface FileDownloadProps {
-  onDownload: (port: number) => Promise<void>;
+  onDownload: (code: string) => Promise<void>;
   isDownloading: boolean;
   error?: string | null;
 }
@@ -16,18 +16,14 @@ export default function FileDownload({ onDownload, isDownloading, error = null }
   const handleSubmit = async (e: React.FormEvent) => {
     e.preventDefault();
     setLocalError('');
-    const trimmed = inviteCode.trim();
-    if (!/^\d+$/.test(trimmed)) {
-      setLocalError('Invite code must be a numeric port number.');
-      return;
-    }
-    const port = parseInt(trimmed, 10);
-    if (port <= 0 || port > 65535) {
-      setLocalError('Invalid port number (1-65535).');
+    // codes are case-insensitive Crockford base32; dashes and spaces are only for readability
+    const code = inviteCode.replace(/[\s-]/g, '').toUpperCase();
+    if (!/^[0-9A-HJKMNP-TV-Z]{10}$/.test(code.replace(/O/g, '0').replace(/[IL]/g, '1'))) {
+      setLocalError('Invite code must be 10 letters or digits, e.g. 7K3QX-9MZ2D.');
       return;
     }
     try {
-      await onDownload(port);
+      await onDownload(code);
     } catch (err: any) {
       setLocalError(err?.message ?? 'Download failed');
     }
@@ -36,13 +32,13 @@ export default function FileDownload({ onDownload, isDownloading, error = null }
   return (
     <div className="p-4 bg-white rounded shadow-sm border">
       <form onSubmit={handleSubmit}>
-        <label className="block text-sm font-medium text-gray-700">Invite code / port</label>
+        <label className="block text-sm font-medium text-gray-700">Invite code</label>
         <input
           type="text"
           value={inviteCode}
           onChange={(e) => setInviteCode(e.target.value)}
           className="mt-1 block w-full rounded border px-2 py-1"
-          placeholder="e.g. 54033"
+          placeholder="e.g. 7K3QX-9MZ2D"
           disabled={isDownloading}
         />
         {(localError || error) && <div className="mt-2 text-sm text-red-600">{localError || error}</div>}
@@ -4,7 +4,7 @@ import React, { useEffect, useState } from 'react';
 import { FiCopy, FiCheck, FiMail, FiSend, FiImage, FiFileText, FiArchive, FiVideo, FiMusic, FiFile } from 'react-icons/fi';
 
 interface InviteCodeProps {
-  port: number | null;
+  code: string | null;
   // servedName/isZip are accepted but not displayed here (kept for compatibility)
   servedName?: string | null;
   isZip?: boolean | null;
@@ -12,7 +12,7 @@ interface InviteCodeProps {
 
 type Toast = { id: number; type: 'success' | 'error' | 'info'; message: string };
 
-export default function InviteCode({ port }: InviteCodeProps) {
+export default function InviteCode({ code }: InviteCodeProps) {
   const [copied, setCopied] = useState(false);
   const [toasts, setToasts] = useState<Toast[]>([]);
   const [showEmailModal, setShowEmailModal] = useState(false);
@@ -26,7 +26,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
     }
   }, [copied]);
 
-  if (!port) return null;
+  if (!code) return null;
 
   const pushToast = (type: Toast['type'], message: string) => {
     const id = Date.now() + Math.floor(Math.random() * 1000);
@@ -38,11 +38,11 @@ export default function InviteCode({ port }: InviteCodeProps) {
 
   const copyCode = async () => {
     try {
-      await navigator.clipboard.writeText(String(port));
+      await navigator.clipboard.writeText(String(code));
       setCopied(true);
       pushToast('success', 'Invite code copied to clipboard');
     } catch (e) {
-      pushToast('error', 'Copy failed — please copy manually: ' + String(port));
+      pushToast('error', 'Copy failed — please copy manually: ' + String(code));
     }
   };
 
@@ -65,7 +65,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
     try {
       const subject = encodeURIComponent('SnapShare: file shared with you');
       const body = encodeURIComponent(
-        `Hi,\n\nA file was shared with you on SnapShare.\nPlease use invite code: ${port}\n\nOpen SnapShare and enter the code to download.\n\n(Valid while the sender's session is active.)`
+        `Hi,\n\nA file was shared with you on SnapShare.\nPlease use invite code: ${code}\n\nOpen SnapShare and enter the code to download.\n\n(Valid while the sender's session is active.)`
       );
       const mailto = `mailto:${encodeURIComponent(emailTarget)}?subject=${subject}&body=${body}`;
       window.open(mailto, '_blank');
@@ -79,7 +79,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
 
   const shareViaWhatsApp = () => {
     try {
-      const text = `I shared a file via SnapShare — use code ${port} to download.`;
+      const text = `I shared a file via SnapShare — use code ${code} to download.`;
       const waUrl = `https://wa.me/?text=${encodeURIComponent(text)}`;
       window.open(waUrl, '_blank');
       pushToast('info', 'WhatsApp opened');
@@ -90,7 +90,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
 
   const shareViaSMS = () => {
     try {
-      const body = `SnapShare file — use code ${port}`;
+      const body = `SnapShare file — use code ${code}`;
       const smsUrl = `sms:?&body=${encodeURIComponent(body)}`;
       window.open(smsUrl, '_blank');
       pushToast('info', 'SMS compose opened');
@@ -107,7 +107,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
 
         <div className="flex items-stretch justify-center mb-4">
           <div className="bg-gray-100 px-5 py-3 rounded-l-md border border-r-0 border-gray-300 font-mono text-xl tracking-wider">
-            {port}
+            {code}
           </div>
           <button
             onClick={copyCode}